@@ -1,7 +1,36 @@
 package com.design.patterns.behavioural;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Chain of responsibility use cases:
@@ -16,12 +45,76 @@ import java.util.EnumSet;
 interface Logger {
     void writeMessage(String msg, Level level);
 
+    /**
+     * Whether this logger handles messages of the given level. Used by {@link LoggerChain} to route messages
+     * only to the loggers interested in them; loggers which do not filter by level accept everything.
+     */
+    default boolean accepts(Level level) {
+        return true;
+    }
+
+    /**
+     * Writes a message which is already formatted into a (possibly reused) buffer. Loggers which can consume the
+     * characters directly override this to avoid turning the buffer into a {@link String}.
+     */
+    default void writeFormatted(CharSequence msg, Level level) {
+        writeMessage(msg.toString(), level);
+    }
+
+    /**
+     * Parameterized variants: the "{}" placeholders in the template are replaced by the arguments, but only once
+     * a logger accepts the level, and the message is built in a thread-local buffer instead of a new String.
+     */
+    default void writeMessage(String template, long arg, Level level) {
+        if (accepts(level)) {
+            writeFormatted(MessageFormatter.format(LogBuffers.get().message(), template, arg), level);
+        }
+    }
+
+    default void writeMessage(String template, Object arg, Level level) {
+        if (accepts(level)) {
+            writeFormatted(MessageFormatter.format(LogBuffers.get().message(), template, arg), level);
+        }
+    }
+
+    default void writeMessage(String template, long arg1, long arg2, Level level) {
+        if (accepts(level)) {
+            writeFormatted(MessageFormatter.format(LogBuffers.get().message(), template, arg1, arg2), level);
+        }
+    }
+
+    default void writeMessage(String template, Object arg1, Object arg2, Level level) {
+        if (accepts(level)) {
+            writeFormatted(MessageFormatter.format(LogBuffers.get().message(), template, arg1, arg2), level);
+        }
+    }
+
     default Logger appendNext(Logger logger) {
-        return (msg, level) -> {
-            writeMessage(msg, level);
-            if (logger != null) {
+        Logger first = this;
+        if (logger == null) {
+            return first;
+        }
+        return new Logger() {
+            @Override
+            public void writeMessage(String msg, Level level) {
+                first.writeMessage(msg, level);
                 logger.writeMessage(msg, level);
             }
+
+            @Override
+            public boolean accepts(Level level) {
+                return first.accepts(level) || logger.accepts(level);
+            }
+
+            @Override
+            public void writeFormatted(CharSequence msg, Level level) {
+                if (first.accepts(level)) {
+                    first.writeFormatted(msg, level);
+                }
+                if (logger.accepts(level)) {
+                    logger.writeFormatted(msg, level);
+                }
+            }
         };
     }
 }
@@ -38,10 +131,20 @@ class ConsoleLogger implements Logger {
         this.levels = EnumSet.copyOf(Arrays.asList(levels));
     }
 
+    @Override
+    public boolean accepts(Level level) {
+        return levels.contains(level);
+    }
+
     @Override
     public void writeMessage(String msg, Level level) {
+        writeFormatted(msg, level);
+    }
+
+    @Override
+    public void writeFormatted(CharSequence msg, Level level) {
         if (levels.contains(level)) {
-            System.out.printf("Writing %s to console\n", msg);
+            LogBuffers.get().printLine(System.out, msg, " to console");
         }
     }
 }
@@ -54,10 +157,20 @@ class EmailLogger implements Logger {
         this.levels = EnumSet.copyOf(Arrays.asList(levels));
     }
 
+    @Override
+    public boolean accepts(Level level) {
+        return levels.contains(level);
+    }
+
     @Override
     public void writeMessage(String msg, Level level) {
+        writeFormatted(msg, level);
+    }
+
+    @Override
+    public void writeFormatted(CharSequence msg, Level level) {
         if (levels.contains(level)) {
-            System.out.printf("Writing %s to email\n", msg);
+            LogBuffers.get().printLine(System.out, msg, " to email");
         }
     }
 }
@@ -65,27 +178,853 @@ class EmailLogger implements Logger {
 class FileLogger implements Logger {
 
     private EnumSet<Level> levels;
+    private final RollingFileAppender appender;
 
     public FileLogger(Level... levels) {
+        this(null, levels);
+    }
+
+    /**
+     * Logger which really writes to the files of the appender instead of printing to the console.
+     */
+    public FileLogger(RollingFileAppender appender, Level... levels) {
         this.levels = EnumSet.copyOf(Arrays.asList(levels));
+        this.appender = appender;
+    }
+
+    @Override
+    public boolean accepts(Level level) {
+        return levels.contains(level);
     }
 
     @Override
     public void writeMessage(String msg, Level level) {
-        if (levels.contains(level)) {
-            System.out.printf("Writing %s to file\n", msg);
+        writeFormatted(msg, level);
+    }
+
+    @Override
+    public void writeFormatted(CharSequence msg, Level level) {
+        if (!levels.contains(level)) {
+            return;
+        }
+        if (appender == null) {
+            LogBuffers.get().printLine(System.out, msg, " to file");
+        } else {
+            appender.append(LogBuffers.get().line().append(level).append(' ').append(msg).append('\n'));
+        }
+    }
+}
+
+/**
+ * Replaces "{}" placeholders SLF4J style. Primitive arguments are appended without boxing.
+ */
+class MessageFormatter {
+    private static final String PLACEHOLDER = "{}";
+
+    private MessageFormatter() {}
+
+    static StringBuilder format(StringBuilder sb, String template, long arg) {
+        int from = appendArgument(sb, template, 0);
+        if (from >= 0) {
+            sb.append(arg);
+        }
+        return appendRest(sb, template, from);
+    }
+
+    static StringBuilder format(StringBuilder sb, String template, Object arg) {
+        int from = appendArgument(sb, template, 0);
+        if (from >= 0) {
+            sb.append(arg);
+        }
+        return appendRest(sb, template, from);
+    }
+
+    static StringBuilder format(StringBuilder sb, String template, long arg1, long arg2) {
+        int from = appendArgument(sb, template, 0);
+        if (from >= 0) {
+            sb.append(arg1);
+            from = appendArgument(sb, template, from);
+            if (from >= 0) {
+                sb.append(arg2);
+            }
+        }
+        return appendRest(sb, template, from);
+    }
+
+    static StringBuilder format(StringBuilder sb, String template, Object arg1, Object arg2) {
+        int from = appendArgument(sb, template, 0);
+        if (from >= 0) {
+            sb.append(arg1);
+            from = appendArgument(sb, template, from);
+            if (from >= 0) {
+                sb.append(arg2);
+            }
+        }
+        return appendRest(sb, template, from);
+    }
+
+    /**
+     * Appends the template up to the next placeholder and returns the index after it, or -1 once the template is
+     * fully appended because there are no more placeholders.
+     */
+    private static int appendArgument(StringBuilder sb, String template, int from) {
+        int placeholder = template.indexOf(PLACEHOLDER, from);
+        if (placeholder < 0) {
+            sb.append(template, from, template.length());
+            return -1;
+        }
+        sb.append(template, from, placeholder);
+        return placeholder + PLACEHOLDER.length();
+    }
+
+    private static StringBuilder appendRest(StringBuilder sb, String template, int from) {
+        if (from >= 0) {
+            sb.append(template, from, template.length());
+        }
+        return sb;
+    }
+}
+
+/**
+ * Per thread buffers reused for every message, so steady state logging does not allocate.
+ */
+class LogBuffers {
+    private static final ThreadLocal<LogBuffers> BUFFERS = ThreadLocal.withInitial(LogBuffers::new);
+
+    private final StringBuilder message = new StringBuilder(256);
+    private final StringBuilder line = new StringBuilder(256);
+    private byte[] bytes = new byte[256];
+
+    static LogBuffers get() {
+        return BUFFERS.get();
+    }
+
+    StringBuilder message() {
+        message.setLength(0);
+        return message;
+    }
+
+    StringBuilder line() {
+        line.setLength(0);
+        return line;
+    }
+
+    /**
+     * Prints "Writing msg suffix" followed by a new line. ASCII text is encoded by hand into the reused byte
+     * buffer; anything else falls back to the stream's own encoding.
+     */
+    void printLine(PrintStream out, CharSequence msg, String suffix) {
+        line.setLength(0);
+        line.append("Writing ").append(msg).append(suffix).append('\n');
+        int length = line.length();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                out.print(line);
+                return;
+            }
+            bytes[i] = (byte) c;
+        }
+        out.write(bytes, 0, length);
+    }
+}
+
+/**
+ * When the data written by a {@link RollingFileAppender} is forced to the disk.
+ */
+enum FsyncPolicy {
+    /**
+     * Left to the operating system.
+     */
+    NEVER,
+    /**
+     * Every segment is forced once it is rotated.
+     */
+    ON_ROTATION,
+    /**
+     * The active segment is forced periodically and every segment once it is rotated.
+     */
+    PERIODIC
+}
+
+/**
+ * Appends lines to memory mapped segment files and rolls over to a new segment when the current one is full or
+ * the rotation interval passes. Writers do not share a lock: each one reserves its range in the segment with a single
+ * atomic add and copies the bytes straight into the mapping. The writer whose reservation crosses the end of the
+ * segment maps the next one, while a background thread waits for the remaining writers of the old segment, forces,
+ * trims and optionally gzips it.
+ * <p>
+ * Segment numbering continues after the highest segment already in the directory, so a restart never overwrites
+ * the logs of a previous run. If the next segment cannot be created the appender fails: every later append throws
+ * the same exception instead of waiting for a segment which will never come.
+ * <p>
+ * Rotated segments are trimmed while still mapped, which is fine on Linux and macOS but fails on Windows.
+ */
+class RollingFileAppender implements AutoCloseable {
+    private final Path directory;
+    private final String baseName;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final boolean compress;
+    private final ScheduledExecutorService background;
+    private final AtomicInteger segmentIndex;
+    private volatile Segment current;
+    private volatile UncheckedIOException failure;
+    private volatile boolean closed;
+
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicLong position = new AtomicLong();
+        final AtomicInteger writers = new AtomicInteger();
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    RollingFileAppender(Path directory, String baseName, int segmentSize, Duration rotationInterval,
+                        FsyncPolicy fsyncPolicy, boolean compress) throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.compress = compress;
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rolling-file-appender-" + baseName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(directory);
+        this.segmentIndex = new AtomicInteger(nextSegmentIndex(directory, baseName));
+        this.current = newSegment();
+        if (rotationInterval != null) {
+            long millis = rotationInterval.toMillis();
+            background.scheduleAtFixedRate(this::rotate, millis, millis, TimeUnit.MILLISECONDS);
+        }
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            background.scheduleWithFixedDelay(() -> current.buffer.force(), 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Appends the line as is, it should already end with a new line. Lines longer than a segment are cut.
+     *
+     * @throws IllegalStateException if the appender is closed
+     */
+    void append(CharSequence line) {
+        if (closed) {
+            throw new IllegalStateException("Appender is closed");
+        }
+        byte[] encoded = isAscii(line) ? null : line.toString().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(encoded == null ? line.length() : encoded.length, segmentSize);
+        while (true) {
+            Segment segment = current;
+            segment.writers.incrementAndGet();
+            long position = segment.position.getAndAdd(length);
+            if (position + length <= segmentSize) {
+                int index = (int) position;
+                for (int i = 0; i < length; i++) {
+                    segment.buffer.put(index + i, encoded == null ? (byte) line.charAt(i) : encoded[i]);
+                }
+                segment.writers.decrementAndGet();
+                return;
+            }
+            segment.writers.decrementAndGet();
+            if (position <= segmentSize) {
+                roll(segment, position);
+            } else {
+                while (current == segment) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (closed) {
+                        throw new IllegalStateException("Appender is closed");
+                    }
+                    Thread.yield(); // another writer is mapping the next segment
+                }
+            }
+        }
+    }
+
+    /**
+     * Rolls over to a new segment even if the current one is not full. An empty segment is kept.
+     */
+    void rotate() {
+        Segment segment = current;
+        if (segment.position.get() == 0) {
+            return;
+        }
+        long position = segment.position.getAndAdd(segmentSize + 1L);
+        if (position <= segmentSize) {
+            roll(segment, position);
+        }
+    }
+
+    private static boolean isAscii(CharSequence line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void roll(Segment segment, long written) {
+        try {
+            current = newSegment();
+        } catch (IOException e) {
+            failure = new UncheckedIOException("Could not create log segment", e);
+        }
+        // no reservation on the old segment succeeds any more, so it can be sealed even if rolling failed
+        background.execute(() -> seal(segment, written));
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static int nextSegmentIndex(Path directory, String baseName) throws IOException {
+        Pattern segmentName = Pattern.compile(Pattern.quote(baseName) + "-(\\d+)\\.log(\\.gz)?");
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> segmentName.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .mapToInt(matcher -> Integer.parseInt(matcher.group(1)) + 1)
+                    .max()
+                    .orElse(0);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        return new Segment(directory.resolve(baseName + "-" + segmentIndex.getAndIncrement() + ".log"), segmentSize);
+    }
+
+    private void seal(Segment segment, long written) {
+        while (segment.writers.get() > 0) {
+            Thread.yield();
+        }
+        try {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                segment.buffer.force();
+            }
+            segment.channel.truncate(written);
+            segment.channel.close();
+            if (compress) {
+                Path compressed = segment.path.resolveSibling(segment.path.getFileName() + ".gz");
+                try (GZIPOutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+                    Files.copy(segment.path, out);
+                }
+                Files.delete(segment.path);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Seals the active segment and waits until all background work is done.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        background.shutdown(); // cancels the periodic tasks but still seals the already rotated segments
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Segment segment = current;
+        long position = segment.position.getAndAdd(segmentSize + 1L);
+        if (position <= segmentSize) {
+            seal(segment, position);
+        }
+    }
+}
+
+/**
+ * Chain of loggers with the routing precomputed per {@link Level}: for every level it keeps an array of only the
+ * loggers which accept it, so dispatching a message is an array lookup and a loop over the interested loggers.
+ * A level nobody accepts costs a lookup of an empty array.
+ */
+class LoggerChain implements Logger {
+    private final Logger[][] routes;
+
+    private LoggerChain(List<Logger> loggers) {
+        Level[] levels = Level.values();
+        this.routes = new Logger[levels.length][];
+        for (Level level : levels) {
+            routes[level.ordinal()] = loggers.stream().filter(logger -> logger.accepts(level)).toArray(Logger[]::new);
+        }
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void writeMessage(String msg, Level level) {
+        for (Logger logger : routes[level.ordinal()]) {
+            logger.writeMessage(msg, level);
+        }
+    }
+
+    @Override
+    public void writeFormatted(CharSequence msg, Level level) {
+        for (Logger logger : routes[level.ordinal()]) {
+            logger.writeFormatted(msg, level);
+        }
+    }
+
+    @Override
+    public boolean accepts(Level level) {
+        return routes[level.ordinal()].length > 0;
+    }
+
+    static class Builder {
+        private final List<Logger> loggers = new ArrayList<>();
+
+        Builder add(Logger logger) {
+            loggers.add(logger);
+            return this;
+        }
+
+        LoggerChain build() {
+            return new LoggerChain(loggers);
+        }
+    }
+}
+
+/**
+ * What an asynchronous logger does when its buffer is full.
+ */
+enum OverflowPolicy {
+    /**
+     * The caller waits until the background thread frees a slot.
+     */
+    BLOCK,
+    /**
+     * The message is discarded.
+     */
+    DROP,
+    /**
+     * Once the buffer is more than half full only every n-th message is kept, the rest are discarded.
+     */
+    SAMPLE
+}
+
+/**
+ * Bounded multi-producer single-consumer ring buffer. Every slot carries a sequence number which tells producers when
+ * the slot is free and the consumer when it is published, so neither side takes a lock.
+ */
+class LogRingBuffer<E> {
+    private final Object[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    LogRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.entries = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    boolean offer(E entry) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries[index] = entry;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false; // full
+            }
+        }
+    }
+
+    /**
+     * Called only from the consumer thread.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E entry = (E) entries[index];
+        entries[index] = null;
+        sequences.set(index, position + entries.length);
+        head = position + 1;
+        return entry;
+    }
+}
+
+/**
+ * Destination of the formatted messages of an {@link AsyncLogger}. Messages are handed over in batches.
+ */
+interface LogSink extends Closeable {
+    void write(ByteBuffer batch) throws IOException;
+}
+
+class ChannelSink implements LogSink {
+    private final WritableByteChannel channel;
+
+    ChannelSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    static ChannelSink console() {
+        return new ChannelSink(Channels.newChannel(System.out));
+    }
+
+    static ChannelSink file(Path path) throws IOException {
+        return new ChannelSink(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND));
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel instanceof FileChannel) {
+            channel.close();
+        }
+    }
+}
+
+/**
+ * Local stand-in for a mail server: every batch becomes one email in the outbox.
+ */
+class EmailStubSink implements LogSink {
+    private final List<String> outbox = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void write(ByteBuffer batch) {
+        outbox.add(StandardCharsets.UTF_8.decode(batch).toString());
+    }
+
+    List<String> getOutbox() {
+        return outbox;
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+/**
+ * Asynchronous counterpart of {@link ConsoleLogger}, {@link EmailLogger} and {@link FileLogger}. The caller only
+ * enqueues the message into a {@link LogRingBuffer}; a background thread drains it, formats the messages and writes
+ * them to the sink in batches.
+ */
+class AsyncLogger implements Logger, AutoCloseable {
+    private static final int BATCH_SIZE = 256;
+    private static final int SAMPLE_RATE = 10;
+
+    private final EnumSet<Level> levels;
+    private final String target;
+    private final LogSink sink;
+    private final OverflowPolicy policy;
+    private final LogRingBuffer<String> buffer;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicInteger producers = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean stopped; // set once no producer can enqueue any more
+    private volatile boolean writerParked;
+
+    public AsyncLogger(String target, LogSink sink, OverflowPolicy policy, int capacity, Level... levels) {
+        this.levels = EnumSet.copyOf(Arrays.asList(levels));
+        this.target = target;
+        this.sink = sink;
+        this.policy = policy;
+        this.buffer = new LogRingBuffer<>(capacity);
+        this.writer = new Thread(this::drainLoop, "async-logger-" + target);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static AsyncLogger console(OverflowPolicy policy, Level... levels) {
+        return new AsyncLogger("console", ChannelSink.console(), policy, 8192, levels);
+    }
+
+    static AsyncLogger email(EmailStubSink sink, OverflowPolicy policy, Level... levels) {
+        return new AsyncLogger("email", sink, policy, 8192, levels);
+    }
+
+    static AsyncLogger file(Path path, OverflowPolicy policy, Level... levels) {
+        try {
+            return new AsyncLogger("file", ChannelSink.file(path), policy, 8192, levels);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open " + path, e);
+        }
+    }
+
+    @Override
+    public void writeMessage(String msg, Level level) {
+        if (!levels.contains(level)) {
+            return;
+        }
+        producers.incrementAndGet();
+        try {
+            if (!running || policy == OverflowPolicy.SAMPLE && buffer.size() > buffer.capacity() / 2
+                    && sampleCounter.getAndIncrement() % SAMPLE_RATE != 0) {
+                dropped.increment();
+                return;
+            }
+            for (int attempt = 0; !buffer.offer(msg); attempt++) {
+                if (policy != OverflowPolicy.BLOCK || !running) {
+                    dropped.increment();
+                    return;
+                }
+                wakeWriter();
+                backOff(attempt);
+            }
+            wakeWriter();
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean accepts(Level level) {
+        return levels.contains(level);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waiting for the writer to free space: spin briefly, then yield, then sleep for up to a millisecond.
+     */
+    private static void backOff(int attempt) {
+        if (attempt < 16) {
+            Thread.onSpinWait();
+        } else if (attempt < 32) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(1000L << Math.min(attempt - 32, 10));
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder();
+        while (!stopped || buffer.size() > 0) {
+            batch.setLength(0);
+            String msg;
+            int count = 0;
+            while (count < BATCH_SIZE && (msg = buffer.poll()) != null) {
+                batch.append("Writing ").append(msg).append(" to ").append(target).append('\n');
+                count++;
+            }
+            if (count == 0) {
+                // a producer reads the flag after enqueueing, so either it sees it set or we see its message here
+                writerParked = true;
+                if (!stopped && buffer.size() == 0) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                continue;
+            }
+            try {
+                sink.write(StandardCharsets.UTF_8.encode(batch.toString()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits until everything buffered has been written and closes the sink. Messages
+     * written after this point are counted as dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        while (producers.get() > 0) { // a producer which saw running == true may still be enqueueing
+            Thread.onSpinWait();
+        }
+        stopped = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        sink.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 }
 
 class ChainOfResponsibility {
 
-    public static void main(String... args) {
+    public static void main(String... args) throws Exception {
         Logger loggerChain = new ConsoleLogger(Level.values())
                 .appendNext(new EmailLogger(Level.ERROR))
                 .appendNext(new FileLogger(Level.INFO));
 
         loggerChain.writeMessage("Test error", Level.ERROR);
         loggerChain.writeMessage("Test info", Level.INFO);
+
+        Logger routedChain = LoggerChain.builder()
+                .add(new ConsoleLogger(Level.values()))
+                .add(new EmailLogger(Level.ERROR))
+                .add(new FileLogger(Level.INFO))
+                .build();
+
+        routedChain.writeMessage("Routed error", Level.ERROR);
+        routedChain.writeMessage("Routed info", Level.INFO);
+        routedChain.writeMessage("Routed error code {} after {} retries", 404, 3, Level.ERROR);
+
+        EmailStubSink mailServer = new EmailStubSink();
+        Path logFile = Path.of(System.getProperty("java.io.tmpdir"), "chain-of-responsibility.log");
+        try (AsyncLogger console = AsyncLogger.console(OverflowPolicy.BLOCK, Level.values());
+             AsyncLogger email = AsyncLogger.email(mailServer, OverflowPolicy.DROP, Level.ERROR);
+             AsyncLogger file = AsyncLogger.file(logFile, OverflowPolicy.SAMPLE, Level.INFO)) {
+            Logger asyncChain = console.appendNext(email).appendNext(file);
+            asyncChain.writeMessage("Async error", Level.ERROR);
+            asyncChain.writeMessage("Async info", Level.INFO);
+        }
+        System.out.println("Emails sent: " + mailServer.getOutbox());
+
+        Path logDirectory = Files.createTempDirectory("rolling-logs");
+        try (RollingFileAppender appender = new RollingFileAppender(logDirectory, "chain", 1024 * 1024,
+                Duration.ofHours(1), FsyncPolicy.ON_ROTATION, false)) {
+            new FileLogger(appender, Level.INFO).writeMessage("Rolled info", Level.INFO);
+        }
+        System.out.print("Log file: " + Files.readString(logDirectory.resolve("chain-0.log")));
+    }
+}
+
+/**
+ * Compares dispatching through the nested {@link Logger#appendNext(Logger)} lambdas against the precomputed
+ * {@link LoggerChain}, with loggers that only count the messages they receive.
+ */
+class LoggerChainBenchmark {
+
+    static class CountingLogger implements Logger {
+        private final EnumSet<Level> levels;
+        long count;
+
+        CountingLogger(Level... levels) {
+            this.levels = EnumSet.copyOf(Arrays.asList(levels));
+        }
+
+        @Override
+        public void writeMessage(String msg, Level level) {
+            if (levels.contains(level)) {
+                count++;
+            }
+        }
+
+        @Override
+        public boolean accepts(Level level) {
+            return levels.contains(level);
+        }
+    }
+
+    public static void main(String... args) {
+        int handlers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int iterations = 20_000_000;
+        Logger nested = new CountingLogger(Level.ERROR);
+        LoggerChain.Builder builder = LoggerChain.builder().add(nested);
+        for (int i = 1; i < handlers; i++) {
+            Logger logger = new CountingLogger(Level.INFO);
+            nested = nested.appendNext(logger);
+            builder.add(logger);
+        }
+        Logger routed = builder.build();
+
+        for (int round = 0; round < 5; round++) {
+            System.out.printf("%d handlers: nested %d ms, routed %d ms (ERROR), nested %d ms, routed %d ms (TRACE)\n",
+                    handlers, time(nested, Level.ERROR, iterations), time(routed, Level.ERROR, iterations),
+                    time(nested, Level.TRACE, iterations), time(routed, Level.TRACE, iterations));
+        }
+    }
+
+    private static long time(Logger logger, Level level, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            logger.writeMessage("message", level);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
+
+/**
+ * Measures how many lines per second a {@link FileLogger} backed by a {@link RollingFileAppender} sustains when
+ * many threads log at the same time.
+ */
+class RollingFileAppenderBenchmark {
+
+    public static void main(String... args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int linesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+        Path directory = Files.createTempDirectory("rolling-logs");
+        try (RollingFileAppender appender = new RollingFileAppender(directory, "bench", 64 * 1024 * 1024,
+                Duration.ofSeconds(1), FsyncPolicy.ON_ROTATION, true)) {
+            Logger logger = new FileLogger(appender, Level.values());
+            Thread[] writers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; i < linesPerThread; i++) {
+                        logger.writeMessage("thread {} line {}", id, i, Level.INFO);
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%d threads wrote %d lines in %d ms: %d lines/s into %s\n", threads,
+                    (long) threads * linesPerThread, TimeUnit.NANOSECONDS.toMillis(nanos),
+                    (long) threads * linesPerThread * 1_000_000_000L / nanos, directory);
+        }
     }
 }
@@ -1,11 +1,20 @@
 package com.design.patterns.behavioural;
 
-import java.util.HashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.Consumer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 /**
  * In software engineering, the mediator pattern defines an object that encapsulates how a set of objects interact.
@@ -26,7 +35,20 @@ import java.util.function.Consumer;
  */
 
 class Storage<T> {
-    private T data;
+    private static final VarHandle CURRENT;
+
+    static {
+        try {
+            CURRENT = MethodHandles.lookup().findVarHandle(Storage.class, "current", Versioned.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // the value and its version are swapped together as one reference through a VarHandle, so readers never see
+    // a torn pair and read-modify-write updates need no lock
+    private volatile Versioned<T> current = new Versioned<>(null, 0);
+    private final ThreadLocal<Versioned<T>> delivering = new ThreadLocal<>();
     private Mediator<T> mediator;
     private String name;
 
@@ -36,12 +58,95 @@ class Storage<T> {
     }
 
     public T getData() {
-        return data;
+        Versioned<T> pinned = delivering.get();
+        return (pinned != null ? pinned : current).getValue();
+    }
+
+    public long getVersion() {
+        return current.getVersion();
+    }
+
+    Versioned<T> snapshot() {
+        return current;
+    }
+
+    /**
+     * The current value with its version, or the delivered snapshot when called from an observer being delivered to.
+     */
+    Versioned<T> getVersioned() {
+        Versioned<T> pinned = delivering.get();
+        return pinned != null ? pinned : current;
+    }
+
+    /**
+     * Runs an observer for the given snapshot: while it runs, reads of this storage from its thread return the
+     * snapshot, so the observer sees exactly the version it is delivered for.
+     */
+    void deliver(Versioned<T> snapshot, Runnable observer) {
+        delivering.set(snapshot);
+        try {
+            observer.run();
+        } finally {
+            delivering.remove();
+        }
+    }
+
+    /**
+     * Returns the current value if it was written after the given version.
+     */
+    public Optional<Versioned<T>> changesSince(long version) {
+        Versioned<T> snapshot = current;
+        return snapshot.getVersion() > version ? Optional.of(snapshot) : Optional.empty();
     }
 
     void setData(T data) {
-        this.data = data;
+        updateAndGet(old -> data);
+    }
+
+    /**
+     * Replaces the value only if nothing was written since the expected version was read. Comparing versions
+     * instead of values works for boxed numbers and cannot be fooled by a value changing and changing back.
+     */
+    boolean compareAndSet(long expectedVersion, T data) {
+        Versioned<T> snapshot = current;
+        if (snapshot.getVersion() == expectedVersion
+                && CURRENT.compareAndSet(this, snapshot, new Versioned<>(data, expectedVersion + 1))) {
+            mediator.notifyObservers(name);
+            return true;
+        }
+        return false;
+    }
+
+    T updateAndGet(UnaryOperator<T> update) {
+        Versioned<T> snapshot;
+        Versioned<T> updated;
+        do {
+            snapshot = current;
+            updated = new Versioned<>(update.apply(snapshot.getValue()), snapshot.getVersion() + 1);
+        } while (!CURRENT.compareAndSet(this, snapshot, updated));
         mediator.notifyObservers(name);
+        return updated.getValue();
+    }
+}
+
+/**
+ * Immutable pair of a value and the version it was written with.
+ */
+class Versioned<T> {
+    private final T value;
+    private final long version;
+
+    Versioned(T value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
     }
 }
 
@@ -75,39 +180,147 @@ class ObserverEvent2<T> implements Runnable {
     }
 }
 
+/**
+ * By default observers run synchronously inside setValue. When created with an executor the mediator delivers
+ * asynchronously instead: each observer is scheduled on the executor at most once until it runs, so a burst of
+ * updates to the same storage is coalesced into a single run which reads the latest value, and a slow observer
+ * no longer holds up the writers. Each version is delivered at most once: during a run the observer reads the
+ * version it was scheduled for, and a run finding no newer version is skipped. Any executor works, e.g. a virtual
+ * thread per task executor on newer JDKs.
+ */
 class Mediator<T> {
-    private final Map<String, Storage<T>> storage = new HashMap<>();
-    private final List<Consumer<String>> observers = new CopyOnWriteArrayList<>();
+    private final Map<String, Storage<T>> storage = new ConcurrentHashMap<>();
+    private final Map<String, List<Subscription<T>>> observers = new ConcurrentHashMap<>(); // indexed by storage name
+    private final Executor executor;
+
+    public Mediator() {
+        this(null);
+    }
+
+    public Mediator(Executor executor) {
+        this.executor = executor;
+    }
 
     public void setValue(final String storageName, final T value) {
-        Storage<T> t = storage.computeIfAbsent(storageName, (String value1) -> new Storage<T>(this, storageName));
-        t.setData(value);
+        storage(storageName).setData(value);
     }
 
     public Optional<T> getValue(String storageName) {
         return Optional.ofNullable(storage.get(storageName)).map(Storage<T>::getData);
     }
 
+    public T updateValue(final String storageName, UnaryOperator<T> update) {
+        return storage(storageName).updateAndGet(update);
+    }
+
+    /**
+     * Returns the value together with its version, for a later {@link #compareAndSetValue(String, long, Object)}.
+     */
+    public Versioned<T> getVersionedValue(String storageName) {
+        return storage(storageName).getVersioned();
+    }
+
+    public boolean compareAndSetValue(final String storageName, long expectedVersion, T value) {
+        return storage(storageName).compareAndSet(expectedVersion, value);
+    }
+
+    /**
+     * Returns the latest value of the storage if it changed after the given version, so a reader can poll
+     * without re-processing values it has already seen.
+     */
+    public Optional<Versioned<T>> getChangesSince(String storageName, long version) {
+        return Optional.ofNullable(storage.get(storageName)).flatMap(s -> s.changesSince(version));
+    }
+
+    private Storage<T> storage(String storageName) {
+        return storage.computeIfAbsent(storageName, name -> new Storage<T>(this, name));
+    }
+
     public void addObserver(String storageName, Runnable observer) {
-        observers.add(eventName -> {
-            if (eventName.equals(storageName)) { // accept method
-                observer.run();
-            }
-        });
+        observers.computeIfAbsent(storageName, name -> new CopyOnWriteArrayList<>())
+                .add(new Subscription<>(observer, storage(storageName)));
     }
 
     public void notifyObservers(String eventName) {
-        observers.forEach(observer -> observer.accept(eventName)); // this accept method is of the Consumer functional interface
+        List<Subscription<T>> subscribers = observers.get(eventName); // only the observers of this storage are visited
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscription<T> subscription : subscribers) {
+            if (executor == null) {
+                subscription.observer.run();
+            } else if (subscription.scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(subscription);
+                } catch (RejectedExecutionException e) {
+                    subscription.scheduled.set(false); // let a later update schedule it again
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static class Subscription<T> implements Runnable {
+        private final Runnable observer;
+        private final Storage<T> storage;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong delivered = new AtomicLong(); // version the observer last ran for
+
+        Subscription(Runnable observer, Storage<T> storage) {
+            this.observer = observer;
+            this.storage = storage;
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false); // updates arriving from now on schedule another run
+            Versioned<T> snapshot = storage.snapshot();
+            long last = delivered.get();
+            // a run scheduled by an update which the previous run already delivered has nothing new to deliver
+            if (snapshot.getVersion() > last && delivered.compareAndSet(last, snapshot.getVersion())) {
+                storage.deliver(snapshot, observer);
+            }
+        }
     }
 }
 
 class DriverMediator {
-    public static void main(String... args) {
+    public static void main(String... args) throws InterruptedException {
         Mediator<String> testThis = new Mediator<>();
         testThis.addObserver("event1", new ObserverEvent1<>(testThis));
         testThis.addObserver("event2", new ObserverEvent2<>(testThis));
 
         testThis.setValue("event1", "some random data");
         testThis.setValue("event1", "another data");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Mediator<String> async = new Mediator<>(executor);
+        async.addObserver("event1", new ObserverEvent1<>(async));
+        for (int i = 0; i < 1000; i++) {
+            async.setValue("event1", "update " + i); // coalesced, the observer runs far fewer than 1000 times
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+
+        Mediator<Integer> counters = new Mediator<>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    counters.updateValue("hits", old -> old == null ? 1 : old + 1);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        counters.getChangesSince("hits", 0).ifPresent(hits ->
+                System.out.println("hits = " + hits.getValue() + " at version " + hits.getVersion()));
+
+        Versioned<Integer> hits = counters.getVersionedValue("hits");
+        boolean swapped = counters.compareAndSetValue("hits", hits.getVersion(), hits.getValue() + 1);
+        System.out.println("hits incremented by compare-and-set: " + swapped + ", now "
+                + counters.getValue("hits").orElse(0));
     }
 }
@@ -1,7 +1,24 @@
 package com.design.patterns.behavioural;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * The memento pattern is a software design pattern that provides the ability to restore an object to its previous state (undo via rollback).
@@ -60,6 +77,362 @@ class Originator {
         setState(memento.getState());
     }
 
+    /**
+     * Undo/redo history of the originator which stores, instead of a full copy per snapshot, only the difference to
+     * the previous snapshot plus a full checkpoint every {@code checkpointInterval} snapshots. Undo and redo apply a
+     * single difference to the current state, jumping to any snapshot replays at most {@code checkpointInterval}
+     * differences from the closest checkpoint, and once the history grows above {@code maxChars} the oldest
+     * checkpoint together with its differences is evicted.
+     */
+    public static class History {
+        private final Originator originator;
+        private final int checkpointInterval;
+        private final long maxChars;
+        private final List<Entry> entries = new ArrayList<>();
+        private int cursor;
+        private String current;
+        private long size;
+
+        public History(Originator originator, int checkpointInterval, long maxChars) {
+            this.originator = originator;
+            this.checkpointInterval = checkpointInterval;
+            this.maxChars = maxChars;
+            this.current = originator.state;
+            add(new Entry(null, current));
+        }
+
+        /**
+         * Records the current state of the originator; anything that could have been redone is discarded.
+         */
+        public void save() {
+            while (entries.size() - 1 > cursor) {
+                size -= entries.remove(entries.size() - 1).size();
+            }
+            String state = originator.state;
+            boolean checkpoint = entries.size() % checkpointInterval == 0;
+            add(new Entry(Delta.between(current, state), checkpoint ? state : null));
+            cursor = entries.size() - 1;
+            current = state;
+            evict();
+        }
+
+        public boolean undo() {
+            if (cursor == 0) {
+                return false;
+            }
+            current = entries.get(cursor--).delta.revert(current);
+            originator.setState(current);
+            return true;
+        }
+
+        public boolean redo() {
+            if (cursor == entries.size() - 1) {
+                return false;
+            }
+            current = entries.get(++cursor).delta.apply(current);
+            originator.setState(current);
+            return true;
+        }
+
+        /**
+         * Restores the snapshot at the given position, 0 being the oldest one still kept.
+         */
+        public void restore(int index) {
+            int checkpoint = index;
+            while (entries.get(checkpoint).checkpoint == null) {
+                checkpoint--;
+            }
+            String state = entries.get(checkpoint).checkpoint;
+            for (int i = checkpoint + 1; i <= index; i++) {
+                state = entries.get(i).delta.apply(state);
+            }
+            cursor = index;
+            current = state;
+            originator.setState(state);
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        private void add(Entry entry) {
+            entries.add(entry);
+            size += entry.size();
+        }
+
+        private void evict() {
+            while (size > maxChars) {
+                int next = 1;
+                while (next < entries.size() && entries.get(next).checkpoint == null) {
+                    next++;
+                }
+                if (next > cursor) {
+                    return; // never evict the current snapshot
+                }
+                List<Entry> evicted = entries.subList(0, next);
+                size -= evicted.stream().mapToLong(Entry::size).sum();
+                evicted.clear();
+                cursor -= next;
+            }
+        }
+
+        private static class Entry {
+            private final Delta delta; // from the previous entry, null for the first one
+            private final String checkpoint; // full state, only every checkpointInterval entries
+
+            Entry(Delta delta, String checkpoint) {
+                this.delta = delta;
+                this.checkpoint = checkpoint;
+            }
+
+            long size() {
+                return (delta == null ? 0 : delta.size()) + (checkpoint == null ? 0 : checkpoint.length());
+            }
+        }
+    }
+
+    /**
+     * Reversible difference between two states: the common prefix and suffix are kept and only the text in
+     * between is stored, both before and after the change.
+     */
+    private static class Delta {
+        private final int prefix;
+        private final int suffix;
+        private final String removed;
+        private final String inserted;
+
+        private Delta(int prefix, int suffix, String removed, String inserted) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        static Delta between(String from, String to) {
+            int max = Math.min(from.length(), to.length());
+            int prefix = 0;
+            while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix
+                    && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+                suffix++;
+            }
+            return new Delta(prefix, suffix, from.substring(prefix, from.length() - suffix),
+                    to.substring(prefix, to.length() - suffix));
+        }
+
+        String apply(String from) {
+            return from.substring(0, prefix) + inserted + from.substring(from.length() - suffix);
+        }
+
+        String revert(String to) {
+            return to.substring(0, prefix) + removed + to.substring(to.length() - suffix);
+        }
+
+        long size() {
+            return removed.length() + inserted.length();
+        }
+    }
+
+    /**
+     * Append-only, memory mapped journal of mementos which survives restarts. Every record is
+     * [length][sequence][crc32][UTF-8 state]; sequences start at 1, so a zero sequence marks the end of the journal,
+     * and a record with a wrong checksum, e.g. one torn by a crash, ends it as well. A background task periodically writes the latest memento to a snapshot file (atomically, through
+     * a temporary file) and, if nothing was appended in the meantime, starts the journal over, so restoring on
+     * start-up reads one snapshot and replays only the records appended after it.
+     */
+    public static class Journal implements AutoCloseable {
+        private static final int HEADER = 4 + 8 + 4;
+
+        private final Path snapshotFile;
+        private final FileChannel channel;
+        private final MappedByteBuffer journal;
+        private final boolean forceEachAppend;
+        private final ScheduledExecutorService snapshotter;
+        private final CRC32 crc = new CRC32();
+        private final Object snapshotLock = new Object();
+        private long sequence;
+        private volatile long snapshotSequence;
+        private Memento latest;
+
+        public Journal(Path directory, int capacity, boolean forceEachAppend, Duration snapshotInterval)
+                throws IOException {
+            Files.createDirectories(directory);
+            this.snapshotFile = directory.resolve("memento.snapshot");
+            this.channel = FileChannel.open(directory.resolve("memento.journal"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            this.forceEachAppend = forceEachAppend;
+            recover();
+            this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "memento-snapshotter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long millis = snapshotInterval.toMillis();
+            snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, millis, millis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The memento restored on start-up or appended last.
+         */
+        public synchronized Optional<Memento> latest() {
+            return Optional.ofNullable(latest);
+        }
+
+        public synchronized void append(Memento memento) throws IOException {
+            byte[] payload = memento.getState().getBytes(StandardCharsets.UTF_8);
+            if (HEADER + payload.length > journal.capacity()) {
+                throw new IllegalArgumentException("Memento does not fit into the journal");
+            }
+            if (journal.position() + HEADER + payload.length > journal.capacity()) {
+                writeSnapshot(latest, sequence);
+                journal.position(0);
+            }
+            long next = sequence + 1;
+            int start = journal.position();
+            journal.putLong(start + 4, 0); // keeps a stale record at this place from being replayed
+            journal.position(start + HEADER);
+            journal.put(payload);
+            journal.putLong(start + 4, next);
+            journal.putInt(start + 12, checksum(next, payload));
+            journal.putInt(start, payload.length);
+            if (journal.position() + 12 <= journal.capacity()) {
+                journal.putLong(journal.position() + 4, 0); // end marker
+            }
+            if (forceEachAppend) {
+                journal.force();
+            }
+            sequence = next;
+            latest = memento;
+        }
+
+        /**
+         * Writes the latest memento to the snapshot file and starts the journal over if nothing was appended
+         * while writing.
+         */
+        public void snapshot() throws IOException {
+            Memento memento;
+            long snapshotAt;
+            synchronized (this) {
+                if (latest == null || sequence == snapshotSequence) {
+                    return;
+                }
+                memento = latest;
+                snapshotAt = sequence;
+            }
+            writeSnapshot(memento, snapshotAt);
+            synchronized (this) {
+                if (sequence == snapshotAt) {
+                    journal.position(0);
+                    journal.putLong(4, 0);
+                }
+            }
+        }
+
+        private void snapshotQuietly() {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void writeSnapshot(Memento memento, long snapshotAt) throws IOException {
+            synchronized (snapshotLock) { // the background task and a full journal may both snapshot
+                if (memento == null || snapshotAt <= snapshotSequence) {
+                    return;
+                }
+                byte[] payload = memento.getState().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER + payload.length);
+                buffer.putInt(payload.length).putLong(snapshotAt).putInt(checksum(snapshotAt, payload)).put(payload)
+                        .flip();
+                Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    out.force(true);
+                }
+                Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                snapshotSequence = snapshotAt;
+            }
+        }
+
+        private void recover() throws IOException {
+            if (Files.exists(snapshotFile)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+                Memento memento = readRecord(buffer, 0);
+                if (memento != null) {
+                    latest = memento;
+                    sequence = buffer.getLong(4);
+                    snapshotSequence = sequence;
+                }
+            }
+            int position = 0;
+            long previous = 0;
+            while (position + HEADER <= journal.capacity()) {
+                Memento memento = readRecord(journal, position);
+                long recordSequence = journal.getLong(position + 4);
+                if (memento == null || recordSequence <= previous) {
+                    break;
+                }
+                if (recordSequence > sequence) {
+                    latest = memento;
+                    sequence = recordSequence;
+                }
+                previous = recordSequence;
+                position += HEADER + journal.getInt(position);
+            }
+            journal.position(position);
+        }
+
+        private Memento readRecord(ByteBuffer buffer, int position) {
+            if (position + HEADER > buffer.limit()) {
+                return null;
+            }
+            int length = buffer.getInt(position);
+            if (buffer.getLong(position + 4) <= 0 || length < 0 || length > buffer.limit() - position - HEADER) {
+                return null; // end marker or garbage, an empty state is a valid record
+            }
+            byte[] payload = new byte[length];
+            buffer.get(position + HEADER, payload);
+            if (checksum(buffer.getLong(position + 4), payload) != buffer.getInt(position + 12)) {
+                return null;
+            }
+            return new Memento(new String(payload, StandardCharsets.UTF_8));
+        }
+
+        private int checksum(long recordSequence, byte[] payload) {
+            synchronized (crc) {
+                crc.reset();
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    crc.update((int) (recordSequence >>> shift));
+                }
+                crc.update(payload);
+                return (int) crc.getValue();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            snapshotter.shutdown();
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                journal.force();
+            }
+            channel.close();
+        }
+    }
+
     public static class Memento {
         private String state;
 
@@ -73,12 +446,439 @@ class Originator {
     }
 }
 
+/**
+ * Immutable list with structural sharing: a 32-way trie of the elements plus a tail array for the last chunk.
+ * Appending or replacing an element copies only the path from the root to it, so the previous version stays
+ * valid and shares everything else with the new one.
+ */
+final class PersistentVector<E> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        return (E) leafFor(index)[index & MASK];
+    }
+
+    PersistentVector<E> append(E element) {
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = element;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) { // the trie is full, grow one level
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<>(size + 1, newShift, newRoot, new Object[]{element});
+    }
+
+    PersistentVector<E> set(int index, E element) {
+        Objects.checkIndex(index, size);
+        if (index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = element;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+        return new PersistentVector<>(size, shift, set(shift, root, index, element), tail);
+    }
+
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] leafFor(int index) {
+        Objects.checkIndex(index, size);
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int index = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[index] = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[index];
+            copy[index] = child != null ? pushTail(level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private static Object[] set(int level, Object[] node, int index, Object element) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = element;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = set(level - BITS, (Object[]) node[child], index, element);
+        }
+        return copy;
+    }
+}
+
+/**
+ * Immutable hash map with structural sharing (hash array mapped trie). Every level consumes 5 bits of the hash and
+ * keeps only the present children, indexed through a bitmap; an update copies only the nodes on the path to the key.
+ * Keys with the same hash share a collision node. Null keys are not supported.
+ */
+final class PersistentMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        return root == null ? null : (V) root.get(0, key.hashCode(), key);
+    }
+
+    PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node start = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = start.put(0, key.hashCode(), key, value, added);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    PersistentMap<K, V> remove(K key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(0, key.hashCode(), key);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, size - 1);
+    }
+
+    private abstract static class Node {
+        abstract Object get(int shift, int hash, Object key);
+
+        abstract Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * Returns null when the node becomes empty.
+         */
+        abstract Node remove(int shift, int hash, Object key);
+    }
+
+    /**
+     * Entries are stored as key/value pairs; a null key means the value is the child node for that slot.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                return ((Node) v).get(shift + 5, hash, key);
+            }
+            return key.equals(k) ? v : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, 2 * index);
+                copy[2 * index] = key;
+                copy[2 * index + 1] = value;
+                System.arraycopy(array, 2 * index, copy, 2 * index + 2, array.length - 2 * index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(shift + 5, hash, key, value, added);
+                return child == v ? this : with(index, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(index, k, value);
+            }
+            added[0] = true;
+            return with(index, null, split(shift + 5, k, v, hash, key, value));
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(shift + 5, hash, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    return with(index, null, child);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, 2 * index);
+            System.arraycopy(array, 2 * index + 2, copy, 2 * index, array.length - 2 * index - 2);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        private BitmapNode with(int index, Object key, Object value) {
+            Object[] copy = array.clone();
+            copy[2 * index] = key;
+            copy[2 * index + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private static Node split(int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = k1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{k1, v1, k2, v2});
+            }
+            boolean[] ignored = new boolean[1];
+            return EMPTY.put(shift, hash1, k1, v1, ignored).put(shift, hash2, k2, v2, ignored);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key) {
+            int i = find(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                return new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[]{null, this})
+                        .put(shift, hash, key, value, added);
+            }
+            int i = find(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int i = find(key);
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+    }
+}
+
+/**
+ * Originator whose state is a larger object graph, a document of lines with properties. The state is kept in
+ * persistent data structures, so taking a memento only captures two references and consecutive mementos share
+ * everything that did not change between them.
+ */
+class DocumentOriginator {
+    private PersistentVector<String> lines = PersistentVector.empty();
+    private PersistentMap<String, String> properties = PersistentMap.empty();
+
+    public void appendLine(String line) {
+        lines = lines.append(line);
+    }
+
+    public void setLine(int index, String line) {
+        lines = lines.set(index, line);
+    }
+
+    public String getLine(int index) {
+        return lines.get(index);
+    }
+
+    public int lineCount() {
+        return lines.size();
+    }
+
+    public void setProperty(String name, String value) {
+        properties = properties.put(name, value);
+    }
+
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Memento saveToMemento() {
+        return new Memento(lines, properties);
+    }
+
+    public void restoreState(Memento memento) {
+        this.lines = memento.lines;
+        this.properties = memento.properties;
+    }
+
+    public static class Memento {
+        private final PersistentVector<String> lines;
+        private final PersistentMap<String, String> properties;
+
+        private Memento(PersistentVector<String> lines, PersistentMap<String, String> properties) {
+            this.lines = lines;
+            this.properties = properties;
+        }
+    }
+}
+
 class Caretaker {
-    public static void main(String... args) {
+    public static void main(String... args) throws Exception {
         List<Originator.Memento> states = new ArrayList<>();
         Originator originator = new Originator("initial state");
         states.add(originator.saveToMemento());
         originator.setState("new state");
         originator.restoreState(states.get(0));
+
+        Originator.History history = new Originator.History(originator, 4, 1024);
+        originator.setState("initial state, edited");
+        history.save();
+        originator.setState("initial state, edited twice");
+        history.save();
+        history.undo();
+        history.undo();
+        history.redo();
+        history.restore(2);
+
+        Path directory = Files.createTempDirectory("memento-journal");
+        try (Originator.Journal journal = new Originator.Journal(directory, 64 * 1024, false, Duration.ofSeconds(5))) {
+            journal.append(originator.saveToMemento());
+            originator.setState("state before restart");
+            journal.append(originator.saveToMemento());
+        }
+        try (Originator.Journal journal = new Originator.Journal(directory, 64 * 1024, false, Duration.ofSeconds(5))) {
+            journal.latest().ifPresent(originator::restoreState); // after a restart
+        }
+
+        DocumentOriginator document = new DocumentOriginator();
+        for (int i = 0; i < 100_000; i++) {
+            document.appendLine("line " + i);
+        }
+        document.setProperty("title", "Large document");
+        DocumentOriginator.Memento beforeEdit = document.saveToMemento();
+        document.setLine(500, "edited line");
+        document.setProperty("title", "Edited document");
+        document.restoreState(beforeEdit);
+        System.out.println(document.getProperty("title") + ": " + document.getLine(500));
     }
 }
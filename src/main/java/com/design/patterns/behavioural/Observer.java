@@ -1,11 +1,31 @@
 package com.design.patterns.behavioural;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
 
 /**
  * The observer pattern is a software design pattern in which an object, called the subject,
@@ -21,26 +41,51 @@ import java.util.List;
  */
 interface Observer {
     void update(String data);
+
+    /**
+     * Called instead of {@link #update(String)} by a matching stage which already found what the observer is
+     * looking for in the line, so the observer can act without scanning the line again.
+     */
+    default void matched(String data) {
+        update(data);
+    }
 }
 
 class KeywordObserver implements Observer {
+    private static final String KEYWORD = "keyword";
 
     @Override
     public void update(String data) {
-        if(Arrays.asList(data.split("\\s+")).contains("keyword")) {
-            System.out.println("Keyword encountered");
+        for (int i = data.indexOf(KEYWORD); i >= 0; i = data.indexOf(KEYWORD, i + 1)) {
+            int end = i + KEYWORD.length();
+            if ((i == 0 || Character.isWhitespace(data.charAt(i - 1)))
+                    && (end == data.length() || Character.isWhitespace(data.charAt(end)))) {
+                matched(data);
+                return;
+            }
         }
     }
+
+    @Override
+    public void matched(String data) {
+        System.out.println("Keyword encountered");
+    }
 }
 
 class NumberObserver implements Observer {
+    private static final Pattern DIGIT = Pattern.compile("[0-9]");
 
     @Override
     public void update(String data) {
-        if(data.matches("^.*[0-9].*$")) {
-            System.out.println("Number encountered");
+        if(DIGIT.matcher(data).find()) {
+            matched(data);
         }
     }
+
+    @Override
+    public void matched(String data) {
+        System.out.println("Number encountered");
+    }
 }
 
 interface InputReader {
@@ -80,6 +125,394 @@ class ConsoleInputReader implements InputReader {
     }
 }
 
+/**
+ * Reads lines until the end of the input and fans every line out to the observers in parallel. Each observer has its
+ * own bounded queue which is drained by a task on the shared executor, one batch at a time, so the pool may be smaller
+ * than the number of observers. When an observer falls behind and its queue is full the line is dropped for that
+ * observer only, and anything thrown by an observer is counted instead of reaching the reader or other observers.
+ */
+class StreamingInputReader implements InputReader {
+    private static final int BATCH_SIZE = 64;
+
+    private final InputStream input;
+    private final Executor executor;
+    private final int queueCapacity;
+    private final List<ObserverWorker> workers = new CopyOnWriteArrayList<>();
+
+    public StreamingInputReader(InputStream input, Executor executor, int queueCapacity) {
+        this.input = input;
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Reads the whole input and returns once every observer has processed or dropped all the lines.
+     */
+    @Override
+    public void read() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                notifyObservers(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (ObserverWorker worker : workers) {
+            while (!worker.isIdle()) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    @Override
+    public void registerObserver(Observer observer) {
+        workers.add(new ObserverWorker(observer, queueCapacity));
+    }
+
+    @Override
+    public void notifyObservers(String input) {
+        for (ObserverWorker worker : workers) {
+            worker.offer(input);
+        }
+    }
+
+    List<ObserverWorker> getWorkers() {
+        return workers;
+    }
+
+    class ObserverWorker implements Runnable {
+        private final Observer observer;
+        private final BlockingQueue<String> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        ObserverWorker(Observer observer, int capacity) {
+            this.observer = observer;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void offer(String line) {
+            if (!queue.offer(line)) {
+                dropped.increment();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                for (int i = 0; i < BATCH_SIZE && (line = queue.poll()) != null; i++) {
+                    try {
+                        observer.update(line);
+                    } catch (Throwable e) { // errors too, one observer must not stop the others or the reader
+                        failures.increment();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            schedule(); // lines which arrived during the batch
+        }
+
+        boolean isIdle() {
+            return !scheduled.get() && queue.isEmpty();
+        }
+
+        long getDropped() {
+            return dropped.sum();
+        }
+
+        long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public String toString() {
+            return observer.getClass().getSimpleName() + " dropped=" + getDropped() + " failures=" + getFailures();
+        }
+    }
+}
+
+/**
+ * Aho-Corasick automaton over a set of keywords: a single pass over the text reports every keyword occurring in it,
+ * no matter how many keywords there are. Keywords marked as whole words only match between whitespace or the ends
+ * of the text.
+ */
+class KeywordMatcher {
+    private final int[] asciiClasses = new int[128];
+    private final Map<Character, Integer> otherClasses = new HashMap<>();
+    private final int[][] transitions;
+    private final int[][] outputs;
+    private final int[] lengths;
+    private final boolean[] wholeWords;
+
+    KeywordMatcher(List<String> keywords, List<Boolean> wholeWords) {
+        int alphabet = 1; // class 0 is every character which is not in any keyword
+        for (String keyword : keywords) {
+            for (char c : keyword.toCharArray()) {
+                if (classOf(c) == 0) {
+                    if (c < 128) {
+                        asciiClasses[c] = alphabet++;
+                    } else {
+                        otherClasses.put(c, alphabet++);
+                    }
+                }
+            }
+        }
+
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> matches = new ArrayList<>();
+        trie.add(new int[alphabet]);
+        matches.add(new ArrayList<>());
+        this.lengths = new int[keywords.size()];
+        this.wholeWords = new boolean[keywords.size()];
+        for (int id = 0; id < keywords.size(); id++) {
+            String keyword = keywords.get(id);
+            int state = 0;
+            for (char c : keyword.toCharArray()) {
+                int cls = classOf(c);
+                if (trie.get(state)[cls] == 0) {
+                    trie.get(state)[cls] = trie.size();
+                    trie.add(new int[alphabet]);
+                    matches.add(new ArrayList<>());
+                }
+                state = trie.get(state)[cls];
+            }
+            matches.get(state).add(id);
+            lengths[id] = keyword.length();
+            this.wholeWords[id] = wholeWords.get(id);
+        }
+
+        // breadth first: turn the trie into a DFA by following failure links for missing transitions
+        this.transitions = trie.toArray(new int[0][]);
+        int[] fail = new int[transitions.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int cls = 0; cls < alphabet; cls++) {
+            if (transitions[0][cls] != 0) {
+                queue.add(transitions[0][cls]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            matches.get(state).addAll(matches.get(fail[state]));
+            for (int cls = 0; cls < alphabet; cls++) {
+                int next = transitions[state][cls];
+                if (next != 0) {
+                    fail[next] = transitions[fail[state]][cls];
+                    queue.add(next);
+                } else {
+                    transitions[state][cls] = transitions[fail[state]][cls];
+                }
+            }
+        }
+        this.outputs = new int[transitions.length][];
+        for (int state = 0; state < transitions.length; state++) {
+            outputs[state] = matches.get(state).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private int classOf(char c) {
+        return c < 128 ? asciiClasses[c] : otherClasses.getOrDefault(c, 0);
+    }
+
+    /**
+     * Reports the id (index in the keyword list) of every keyword occurrence in the text.
+     */
+    void match(CharSequence text, IntConsumer onMatch) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = transitions[state][classOf(text.charAt(i))];
+            for (int id : outputs[state]) {
+                if (!wholeWords[id] || isWholeWord(text, i - lengths[id] + 1, i + 1)) {
+                    onMatch.accept(id);
+                }
+            }
+        }
+    }
+
+    private static boolean isWholeWord(CharSequence text, int start, int end) {
+        return (start == 0 || Character.isWhitespace(text.charAt(start - 1)))
+                && (end == text.length() || Character.isWhitespace(text.charAt(end)));
+    }
+}
+
+/**
+ * Shared matching stage in front of the observers: every observer registers the keywords it is interested in,
+ * all of them are compiled into one {@link KeywordMatcher}, and every line is scanned once and handed only to the
+ * observers whose keywords occur in it through {@link Observer#matched(String)}, so they do not scan it again.
+ * Observers registered without keywords receive every line.
+ */
+class MatchingInputReader implements InputReader {
+    private final InputStream input;
+    private final List<Observer> observers = new ArrayList<>();
+    private final List<String> keywords = new ArrayList<>();
+    private final List<Boolean> wholeWords = new ArrayList<>();
+    private final List<Integer> keywordOwners = new ArrayList<>();
+    private final List<Observer> unfiltered = new ArrayList<>();
+    private KeywordMatcher matcher;
+    private int[] owners;
+
+    public MatchingInputReader(InputStream input) {
+        this.input = input;
+    }
+
+    @Override
+    public void read() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                notifyObservers(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void registerObserver(Observer observer) {
+        unfiltered.add(observer);
+    }
+
+    public void registerObserver(Observer observer, boolean wholeWord, String... observerKeywords) {
+        int owner = observers.size();
+        observers.add(observer);
+        for (String keyword : observerKeywords) {
+            keywords.add(keyword);
+            wholeWords.add(wholeWord);
+            keywordOwners.add(owner);
+        }
+        matcher = null; // recompiled on the next line
+    }
+
+    @Override
+    public void notifyObservers(String input) {
+        if (matcher == null) {
+            matcher = new KeywordMatcher(keywords, wholeWords);
+            owners = keywordOwners.stream().mapToInt(Integer::intValue).toArray();
+        }
+        boolean[] matched = new boolean[observers.size()];
+        matcher.match(input, id -> matched[owners[id]] = true);
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                observers.get(i).matched(input);
+            }
+        }
+        for (Observer observer : unfiltered) {
+            observer.update(input);
+        }
+    }
+}
+
+/**
+ * Adapts an {@link Observer} to a reactive streams subscriber. Items are requested in batches: the first batch is
+ * requested on subscription and the next one once half of the current batch has been consumed.
+ */
+class ObserverSubscriber implements Flow.Subscriber<String> {
+    private final Observer observer;
+    private final int batchSize;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+    private int outstanding;
+
+    ObserverSubscriber(Observer observer, int batchSize) {
+        this.observer = observer;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        this.outstanding = batchSize;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(String item) {
+        observer.update(item);
+        if (--outstanding <= batchSize / 2) {
+            outstanding += batchSize;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        completion.complete(null);
+    }
+
+    CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+}
+
+/**
+ * Input reader which is a {@link Flow.Publisher} of lines. Every subscriber has a bounded buffer and receives only
+ * as many lines as it requested; when a buffer is full reading the input blocks, so memory stays bounded no matter
+ * how bursty the input is.
+ */
+class PublishingInputReader implements InputReader, Flow.Publisher<String> {
+    private static final int BATCH_SIZE = 32;
+
+    private final InputStream input;
+    private final SubmissionPublisher<String> publisher;
+    private final List<ObserverSubscriber> observers = new CopyOnWriteArrayList<>();
+
+    public PublishingInputReader(InputStream input, Executor executor, int bufferCapacity) {
+        this.input = input;
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+    }
+
+    /**
+     * Publishes the whole input, completes the stream and returns once the registered observers consumed it.
+     */
+    @Override
+    public void read() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                notifyObservers(line);
+            }
+            publisher.close();
+        } catch (IOException e) {
+            publisher.closeExceptionally(e);
+        }
+        for (ObserverSubscriber observer : observers) {
+            observer.getCompletion().exceptionally(e -> null).join();
+        }
+    }
+
+    @Override
+    public void registerObserver(Observer observer) {
+        ObserverSubscriber subscriber = new ObserverSubscriber(observer, BATCH_SIZE);
+        observers.add(subscriber);
+        subscribe(subscriber);
+    }
+
+    @Override
+    public void notifyObservers(String input) {
+        publisher.submit(input); // blocks while a subscriber's buffer is full
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+}
+
 class TestObserver {
 
     public static void main(String[] args) {
@@ -89,5 +522,32 @@ class TestObserver {
         ir.registerObserver(observer);
         ir.registerObserver(observer1);
         ir.read();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        String lines = "a keyword here\nno digits\nline 42\n";
+        StreamingInputReader streaming = new StreamingInputReader(
+                new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), executor, 1024);
+        streaming.registerObserver(new KeywordObserver());
+        streaming.registerObserver(new NumberObserver());
+        streaming.registerObserver(data -> {
+            throw new IllegalStateException("faulty observer");
+        });
+        streaming.read();
+        streaming.getWorkers().forEach(System.out::println);
+        executor.shutdown();
+
+        MatchingInputReader matching = new MatchingInputReader(
+                new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)));
+        matching.registerObserver(new KeywordObserver(), true, "keyword");
+        matching.registerObserver(new NumberObserver(), false, "0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+        matching.read();
+
+        ExecutorService publisherExecutor = Executors.newFixedThreadPool(2);
+        PublishingInputReader publishing = new PublishingInputReader(
+                new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), publisherExecutor, 16);
+        publishing.registerObserver(new KeywordObserver());
+        publishing.registerObserver(new NumberObserver());
+        publishing.read();
+        publisherExecutor.shutdown();
     }
 }
@@ -1,7 +1,16 @@
 package com.design.patterns.behavioural;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * In object-oriented programming and software engineering, the visitor design pattern is a way of separating an algorithm from an
@@ -22,6 +31,17 @@ abstract class Node {
     }
 
     public abstract void accept(Visitor visitor);
+
+    /**
+     * Visits only this node, without its children, so the traversal order can be decided by the caller.
+     */
+    public abstract void acceptSelf(Visitor visitor);
+
+    public abstract <R> R acceptSelf(ReducingVisitor<R> visitor);
+
+    List<Node> getChildren() {
+        return Collections.emptyList();
+    }
 }
 
 class TreeNode extends Node {
@@ -45,6 +65,21 @@ class TreeNode extends Node {
 
         visitor.visitTreeNode(this);
     }
+
+    @Override
+    public void acceptSelf(Visitor visitor) {
+        visitor.visitTreeNode(this);
+    }
+
+    @Override
+    public <R> R acceptSelf(ReducingVisitor<R> visitor) {
+        return visitor.visitTreeNode(this);
+    }
+
+    @Override
+    List<Node> getChildren() {
+        return children;
+    }
 }
 
 class TreeLeaf extends Node {
@@ -56,6 +91,16 @@ class TreeLeaf extends Node {
     public void accept(Visitor visitor) {
         visitor.visitLeaf(this);
     }
+
+    @Override
+    public void acceptSelf(Visitor visitor) {
+        visitor.visitLeaf(this);
+    }
+
+    @Override
+    public <R> R acceptSelf(ReducingVisitor<R> visitor) {
+        return visitor.visitLeaf(this);
+    }
 }
 
 interface Visitor {
@@ -63,6 +108,11 @@ interface Visitor {
     void visitTreeNode(Node node);
 }
 
+/**
+ * Prints the nodes. Despite the name the order is decided by the traversal: {@link Node#accept(Visitor)} is always
+ * post-order, use {@link Traversal#walk(Node, TraversalOrder, TraversalVisitor)} with
+ * {@link TraversalOrder#BREADTH_FIRST} for a real breadth first visit.
+ */
 class BfsVisitor implements Visitor {
 
     @Override
@@ -77,6 +127,543 @@ class BfsVisitor implements Visitor {
 }
 
 
+/**
+ * What a traversal does after visiting a node.
+ */
+enum VisitResult {
+    CONTINUE,
+    /**
+     * Do not visit the children of the node. Ignored in post-order, where the children are already visited.
+     */
+    SKIP_CHILDREN,
+    STOP
+}
+
+/**
+ * Visitor which controls the traversal through its result, e.g. to prune subtrees or to stop a search early.
+ */
+@FunctionalInterface
+interface TraversalVisitor {
+    VisitResult visit(Node node);
+
+    static TraversalVisitor of(Visitor visitor) {
+        return node -> {
+            node.acceptSelf(visitor);
+            return VisitResult.CONTINUE;
+        };
+    }
+}
+
+/**
+ * Iterator over the nodes of a tree which can skip the children of the node it returned last.
+ */
+interface NodeIterator extends Iterator<Node> {
+    void skipChildren();
+}
+
+enum TraversalOrder {
+    BREADTH_FIRST {
+        @Override
+        NodeIterator iterator(Node root) {
+            return new ExpandingIterator(root) {
+                @Override
+                Node take(ArrayDeque<Node> pending) {
+                    return pending.pollFirst();
+                }
+
+                @Override
+                void expand(Node node, ArrayDeque<Node> pending) {
+                    pending.addAll(node.getChildren());
+                }
+            };
+        }
+    },
+    PRE_ORDER {
+        @Override
+        NodeIterator iterator(Node root) {
+            return new ExpandingIterator(root) {
+                @Override
+                Node take(ArrayDeque<Node> pending) {
+                    return pending.pollLast();
+                }
+
+                @Override
+                void expand(Node node, ArrayDeque<Node> pending) {
+                    List<Node> children = node.getChildren();
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        pending.addLast(children.get(i));
+                    }
+                }
+            };
+        }
+    },
+    POST_ORDER {
+        @Override
+        NodeIterator iterator(Node root) {
+            return new PostOrderIterator(root);
+        }
+    };
+
+    abstract NodeIterator iterator(Node root);
+
+    /**
+     * Base of the breadth first and pre-order iterators: the children of a returned node are added to the
+     * pending nodes only when the next node is requested, so that they can still be skipped.
+     */
+    private abstract static class ExpandingIterator implements NodeIterator {
+        private final ArrayDeque<Node> pending = new ArrayDeque<>();
+        private Node last;
+
+        ExpandingIterator(Node root) {
+            pending.add(root);
+        }
+
+        abstract Node take(ArrayDeque<Node> pending);
+
+        abstract void expand(Node node, ArrayDeque<Node> pending);
+
+        @Override
+        public boolean hasNext() {
+            expandLast();
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public Node next() {
+            expandLast();
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            last = take(pending);
+            return last;
+        }
+
+        @Override
+        public void skipChildren() {
+            last = null;
+        }
+
+        private void expandLast() {
+            if (last != null) {
+                expand(last, pending);
+                last = null;
+            }
+        }
+    }
+
+    /**
+     * Keeps the path from the root in an array together with the index of the next child to descend into.
+     */
+    private static class PostOrderIterator implements NodeIterator {
+        private Node[] path = new Node[16];
+        private int[] nextChild = new int[16];
+        private int depth;
+
+        PostOrderIterator(Node root) {
+            path[0] = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth >= 0;
+        }
+
+        @Override
+        public Node next() {
+            if (depth < 0) {
+                throw new NoSuchElementException();
+            }
+            while (true) {
+                Node node = path[depth];
+                List<Node> children = node.getChildren();
+                if (nextChild[depth] == children.size()) {
+                    path[depth--] = null;
+                    return node;
+                }
+                Node child = children.get(nextChild[depth]++);
+                if (++depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                    nextChild = Arrays.copyOf(nextChild, depth * 2);
+                }
+                path[depth] = child;
+                nextChild[depth] = 0;
+            }
+        }
+
+        @Override
+        public void skipChildren() {
+        }
+    }
+}
+
+class Traversal {
+
+    private Traversal() {}
+
+    /**
+     * Visits the tree in the given order; returns false if the visitor stopped the traversal.
+     */
+    static boolean walk(Node root, TraversalOrder order, TraversalVisitor visitor) {
+        NodeIterator iterator = order.iterator(root);
+        while (iterator.hasNext()) {
+            VisitResult result = visitor.visit(iterator.next());
+            if (result == VisitResult.STOP) {
+                return false;
+            }
+            if (result == VisitResult.SKIP_CHILDREN) {
+                iterator.skipChildren();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first node, in the given order, with the value; the rest of the tree is not visited.
+     */
+    static Optional<Node> find(Node root, TraversalOrder order, int value) {
+        Node[] found = new Node[1];
+        walk(root, order, node -> {
+            if (node.getValue() == value) {
+                found[0] = node;
+                return VisitResult.STOP;
+            }
+            return VisitResult.CONTINUE;
+        });
+        return Optional.ofNullable(found[0]);
+    }
+}
+
+/**
+ * Visitor which produces a result per node. The results are merged with {@link #combine(Object, Object)}, which
+ * must be associative and commutative, so that subtrees can be reduced independently and in any order.
+ */
+interface ReducingVisitor<R> {
+    R identity();
+
+    R visitLeaf(Node node);
+
+    R visitTreeNode(Node node);
+
+    R combine(R left, R right);
+}
+
+class SumVisitor implements ReducingVisitor<Long> {
+
+    @Override
+    public Long identity() {
+        return 0L;
+    }
+
+    @Override
+    public Long visitLeaf(Node node) {
+        return (long) node.getValue();
+    }
+
+    @Override
+    public Long visitTreeNode(Node node) {
+        return (long) node.getValue();
+    }
+
+    @Override
+    public Long combine(Long left, Long right) {
+        return left + right;
+    }
+}
+
+class MaxVisitor implements ReducingVisitor<Integer> {
+
+    @Override
+    public Integer identity() {
+        return Integer.MIN_VALUE;
+    }
+
+    @Override
+    public Integer visitLeaf(Node node) {
+        return node.getValue();
+    }
+
+    @Override
+    public Integer visitTreeNode(Node node) {
+        return node.getValue();
+    }
+
+    @Override
+    public Integer combine(Integer left, Integer right) {
+        return Math.max(left, right);
+    }
+}
+
+class CountVisitor implements ReducingVisitor<Long> {
+
+    @Override
+    public Long identity() {
+        return 0L;
+    }
+
+    @Override
+    public Long visitLeaf(Node node) {
+        return 1L;
+    }
+
+    @Override
+    public Long visitTreeNode(Node node) {
+        return 1L;
+    }
+
+    @Override
+    public Long combine(Long left, Long right) {
+        return left + right;
+    }
+}
+
+/**
+ * Traversals which keep the pending nodes in an explicit stack instead of the call stack, so arbitrarily deep
+ * trees can be visited.
+ */
+class IterativeTraversal {
+
+    private IterativeTraversal() {}
+
+    /**
+     * Visits the children before their parent, the same order as {@link Node#accept(Visitor)}.
+     */
+    static void postOrder(Node root, Visitor visitor) {
+        Traversal.walk(root, TraversalOrder.POST_ORDER, TraversalVisitor.of(visitor));
+    }
+
+    static <R> R reduce(Node root, ReducingVisitor<R> visitor) {
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        R result = visitor.identity();
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            result = visitor.combine(result, node.acceptSelf(visitor));
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Reduces a tree on the fork/join pool. Every task walks its part of the tree with an explicit stack and, each
+ * time it has visited {@code threshold} nodes, forks the older half of its pending nodes - the ones closest to the
+ * root, so usually the largest subtrees - as a new task. Small trees therefore stay on one thread and deep trees
+ * never recurse.
+ */
+class ParallelTraversal {
+
+    private ParallelTraversal() {}
+
+    static <R> R reduce(Node root, ReducingVisitor<R> visitor, int threshold) {
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        pending.add(root);
+        return ForkJoinPool.commonPool().invoke(new ReduceTask<>(pending, visitor, threshold));
+    }
+
+    private static class ReduceTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayDeque<Node> pending;
+        private final ReducingVisitor<R> visitor;
+        private final int threshold;
+
+        ReduceTask(ArrayDeque<Node> pending, ReducingVisitor<R> visitor, int threshold) {
+            this.pending = pending;
+            this.visitor = visitor;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected R compute() {
+            R result = visitor.identity();
+            List<ReduceTask<R>> forked = new ArrayList<>();
+            int visited = 0;
+            while (!pending.isEmpty()) {
+                Node node = pending.pollLast();
+                result = visitor.combine(result, node.acceptSelf(visitor));
+                pending.addAll(node.getChildren());
+                if (++visited == threshold) {
+                    visited = 0;
+                    if (pending.size() > 1) {
+                        ArrayDeque<Node> split = new ArrayDeque<>();
+                        for (int i = pending.size() / 2; i > 0; i--) {
+                            split.add(pending.pollFirst());
+                        }
+                        ReduceTask<R> task = new ReduceTask<>(split, visitor, threshold);
+                        task.fork();
+                        forked.add(task);
+                    }
+                }
+            }
+            for (ReduceTask<R> task : forked) {
+                result = visitor.combine(result, task.join());
+            }
+            return result;
+        }
+    }
+}
+
+/**
+ * Visitor over a {@link FlatTree}, which has no node objects: a node is identified by its index.
+ */
+@FunctionalInterface
+interface FlatVisitor {
+    VisitResult visit(int node, int value, boolean leaf);
+}
+
+/**
+ * Compact copy of a {@link Node} tree in plain arrays. The nodes are laid out in pre-order, so every subtree
+ * occupies the index range [node, subtreeEnd[node]): the first child of a node is the next index and its next
+ * sibling starts where its subtree ends. A pre-order walk or a reduction is then a sequential scan of the arrays
+ * instead of pointer chasing through the heap, and a node costs 9 bytes instead of a separate object.
+ */
+class FlatTree {
+    private final int[] values;
+    private final int[] subtreeEnd;
+    private final boolean[] leaves;
+
+    private FlatTree(int[] values, int[] subtreeEnd, boolean[] leaves) {
+        this.values = values;
+        this.subtreeEnd = subtreeEnd;
+        this.leaves = leaves;
+    }
+
+    static FlatTree of(Node root) {
+        int size = IterativeTraversal.reduce(root, new CountVisitor()).intValue();
+        int[] values = new int[size];
+        int[] subtreeEnd = new int[size];
+        boolean[] leaves = new boolean[size];
+        int[] open = new int[16]; // indices of the nodes on the path from the root whose subtree is not closed yet
+        int depth = 0;
+        int index = 0;
+        Node[] path = new Node[16];
+        int[] nextChild = new int[16];
+        path[0] = root;
+        values[index] = root.getValue();
+        leaves[index] = root instanceof TreeLeaf;
+        open[0] = index++;
+        while (depth >= 0) {
+            List<Node> children = path[depth].getChildren();
+            if (nextChild[depth] == children.size()) {
+                subtreeEnd[open[depth]] = index;
+                path[depth--] = null;
+                continue;
+            }
+            Node child = children.get(nextChild[depth]++);
+            if (++depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                nextChild = Arrays.copyOf(nextChild, depth * 2);
+                open = Arrays.copyOf(open, depth * 2);
+            }
+            path[depth] = child;
+            nextChild[depth] = 0;
+            values[index] = child.getValue();
+            leaves[index] = child instanceof TreeLeaf;
+            open[depth] = index++;
+        }
+        return new FlatTree(values, subtreeEnd, leaves);
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    int getValue(int node) {
+        return values[node];
+    }
+
+    boolean isLeaf(int node) {
+        return leaves[node];
+    }
+
+    int firstChild(int node) {
+        return node + 1 < subtreeEnd[node] ? node + 1 : -1;
+    }
+
+    /**
+     * Returns the next sibling of a child, given its parent.
+     */
+    int nextSibling(int parent, int child) {
+        return subtreeEnd[child] < subtreeEnd[parent] ? subtreeEnd[child] : -1;
+    }
+
+    /**
+     * Pre-order walk; skipping the children of a node just jumps over its index range.
+     */
+    boolean preOrder(FlatVisitor visitor) {
+        int node = 0;
+        while (node < values.length) {
+            VisitResult result = visitor.visit(node, values[node], leaves[node]);
+            if (result == VisitResult.STOP) {
+                return false;
+            }
+            node = result == VisitResult.SKIP_CHILDREN ? subtreeEnd[node] : node + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Post-order walk, the order of {@link Node#accept(Visitor)}.
+     */
+    boolean postOrder(FlatVisitor visitor) {
+        int[] stack = new int[16];
+        int top = -1;
+        for (int node = 0; node <= values.length; node++) {
+            while (top >= 0 && (node == values.length || subtreeEnd[stack[top]] <= node)) {
+                int done = stack[top--];
+                if (visitor.visit(done, values[done], leaves[done]) == VisitResult.STOP) {
+                    return false;
+                }
+            }
+            if (node < values.length) {
+                if (++top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top] = node;
+            }
+        }
+        return true;
+    }
+
+    boolean breadthFirst(FlatVisitor visitor) {
+        int[] queue = new int[values.length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int node = queue[head++];
+            VisitResult result = visitor.visit(node, values[node], leaves[node]);
+            if (result == VisitResult.STOP) {
+                return false;
+            }
+            if (result == VisitResult.CONTINUE) {
+                for (int child = firstChild(node); child >= 0; child = nextSibling(node, child)) {
+                    queue[tail++] = child;
+                }
+            }
+        }
+        return true;
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    int max() {
+        int max = Integer.MIN_VALUE;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
+
 class TestVisitor {
     public static void main(String... args) {
         TreeNode root = new TreeNode(3);
@@ -100,5 +687,153 @@ class TestVisitor {
 
         Visitor bfsVisit = new BfsVisitor();
         root.accept(bfsVisit);
+
+        Traversal.walk(root, TraversalOrder.BREADTH_FIRST, TraversalVisitor.of(bfsVisit));
+        Traversal.walk(root, TraversalOrder.PRE_ORDER, node -> {
+            System.out.println("Pre-order visiting " + node.getValue());
+            return node == child1 ? VisitResult.SKIP_CHILDREN : VisitResult.CONTINUE; // prunes 6 and 7
+        });
+        System.out.println("Found " + Traversal.find(root, TraversalOrder.BREADTH_FIRST, 8).map(Node::getValue));
+        System.out.println("Sum of values " + ParallelTraversal.reduce(root, new SumVisitor(), 2)
+                + ", max value " + ParallelTraversal.reduce(root, new MaxVisitor(), 2)
+                + ", nodes " + IterativeTraversal.reduce(root, new CountVisitor()));
+
+        FlatTree flat = FlatTree.of(root);
+        flat.postOrder((node, value, leaf) -> {
+            System.out.println("Flat post-order visiting " + value);
+            return VisitResult.CONTINUE;
+        });
+        System.out.println("Flat sum " + flat.sum() + ", max " + flat.max());
+    }
+}
+
+/**
+ * Compares the recursive {@link Node#accept(Visitor)} with the iterative and the fork/join traversals on a wide
+ * tree of 10M nodes and on a degenerate chain deep enough to overflow the call stack.
+ */
+class VisitorBenchmark {
+
+    public static void main(String... args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Node wide = buildWide(nodes, 8);
+        Node deep = buildChain(1_000_000);
+        ReducingVisitor<Long> sum = new SumVisitor();
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long[] recursiveSum = new long[1];
+            wide.accept(new Visitor() {
+                @Override
+                public void visitLeaf(Node node) {
+                    recursiveSum[0] += node.getValue();
+                }
+
+                @Override
+                public void visitTreeNode(Node node) {
+                    recursiveSum[0] += node.getValue();
+                }
+            });
+            long recursive = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long iterativeSum = IterativeTraversal.reduce(wide, sum);
+            long iterative = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long parallelSum = ParallelTraversal.reduce(wide, sum, 10_000);
+            long parallel = System.nanoTime() - start;
+
+            System.out.printf("%d nodes: recursive %d ms, iterative %d ms, parallel %d ms (sums %d/%d/%d)\n", nodes,
+                    TimeUnit.NANOSECONDS.toMillis(recursive), TimeUnit.NANOSECONDS.toMillis(iterative),
+                    TimeUnit.NANOSECONDS.toMillis(parallel), recursiveSum[0], iterativeSum, parallelSum);
+        }
+
+        try {
+            deep.accept(new BfsVisitor());
+        } catch (StackOverflowError e) {
+            System.out.println("Recursive traversal of the chain overflowed the stack");
+        }
+        System.out.println("Chain nodes counted iteratively: " + IterativeTraversal.reduce(deep, new CountVisitor())
+                + ", in parallel: " + ParallelTraversal.reduce(deep, new CountVisitor(), 10_000));
+    }
+
+    static Node buildWide(int nodes, int fanOut) {
+        TreeNode root = new TreeNode(0);
+        ArrayDeque<TreeNode> parents = new ArrayDeque<>();
+        parents.add(root);
+        int created = 1;
+        while (created < nodes) {
+            TreeNode parent = parents.poll();
+            for (int i = 0; i < fanOut && created < nodes; i++, created++) {
+                if (created * fanOut < nodes) {
+                    TreeNode child = new TreeNode(created);
+                    parent.addChild(child);
+                    parents.add(child);
+                } else {
+                    parent.addChild(new TreeLeaf(created));
+                }
+            }
+        }
+        return root;
+    }
+
+    static Node buildChain(int depth) {
+        TreeNode root = new TreeNode(0);
+        TreeNode current = root;
+        for (int i = 1; i < depth; i++) {
+            TreeNode child = new TreeNode(i);
+            current.addChild(child);
+            current = child;
+        }
+        return root;
+    }
+}
+
+/**
+ * Compares the heap used by a {@link TreeNode} tree and by its {@link FlatTree} copy, and the time of a sum over
+ * both of them.
+ */
+class FlatTreeBenchmark {
+
+    public static void main(String... args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        long before = usedHeap();
+        Node tree = VisitorBenchmark.buildWide(nodes, 8);
+        long treeHeap = usedHeap() - before;
+        before = usedHeap();
+        FlatTree flat = FlatTree.of(tree);
+        long flatHeap = usedHeap() - before;
+        System.out.printf("%d nodes: object tree %d MB, flat tree %d MB\n", nodes, treeHeap >> 20, flatHeap >> 20);
+
+        ReducingVisitor<Long> sum = new SumVisitor();
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long objectSum = IterativeTraversal.reduce(tree, sum);
+            long objectTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long[] visitorSum = new long[1];
+            flat.preOrder((node, value, leaf) -> {
+                visitorSum[0] += value;
+                return VisitResult.CONTINUE;
+            });
+            long visitorTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long flatSum = flat.sum();
+            long flatTime = System.nanoTime() - start;
+
+            System.out.printf("object tree %d ms, flat visitor %d ms, flat scan %d ms (sums %d/%d/%d)\n",
+                    TimeUnit.NANOSECONDS.toMillis(objectTime), TimeUnit.NANOSECONDS.toMillis(visitorTime),
+                    TimeUnit.NANOSECONDS.toMillis(flatTime), objectSum, visitorSum[0], flatSum);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
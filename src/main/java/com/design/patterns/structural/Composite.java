@@ -1,7 +1,14 @@
 package com.design.patterns.structural;
 
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * In software engineering, the composite pattern is a partitioning design pattern. The composite pattern describes
@@ -34,7 +41,30 @@ import java.util.List;
  * @author angel.beshirov
  */
 interface Graphic {
-    void print();
+
+    /**
+     * Renders the whole tree into one buffer and writes it to the console at once.
+     */
+    default void print() {
+        StringBuilder out = new StringBuilder();
+        render(out);
+        System.out.print(out);
+    }
+
+    /**
+     * Appends the textual form of this graphic to the caller's buffer, which can be reused between renders.
+     */
+    void render(StringBuilder out);
+
+    /**
+     * Number of graphics in this subtree, including this one.
+     */
+    int count();
+
+    /**
+     * Layout height in pixels, the children of a page are stacked vertically below its title.
+     */
+    int height();
 }
 
 
@@ -44,8 +74,18 @@ interface Graphic {
 class Button implements Graphic {
 
     @Override
-    public void print() {
-        System.out.println("Button");
+    public void render(StringBuilder out) {
+        out.append("Button\n");
+    }
+
+    @Override
+    public int count() {
+        return 1;
+    }
+
+    @Override
+    public int height() {
+        return 30;
     }
 }
 
@@ -55,17 +95,35 @@ class Button implements Graphic {
 class Scroll implements Graphic {
 
     @Override
-    public void print() {
-        System.out.println("Scroll");
+    public void render(StringBuilder out) {
+        out.append("Scroll\n");
+    }
+
+    @Override
+    public int count() {
+        return 1;
+    }
+
+    @Override
+    public int height() {
+        return 15;
     }
 }
 
 /**
  * Composite
+ * <p>
+ * The aggregates of the subtree are cached. Adding or removing a child applies the difference it makes only to this
+ * page and its ancestors, so queries are O(1) and an edit costs O(depth) instead of walking the whole subtree.
  */
 class Page implements Graphic {
+    private static final int TITLE_HEIGHT = 40;
+
     private final List<Graphic> pageGraphics;
     private final String name;
+    private Page parent;
+    private int count = 1;
+    private int height = TITLE_HEIGHT;
 
     public Page(String name) {
         this.pageGraphics = new ArrayList<>();
@@ -73,18 +131,112 @@ class Page implements Graphic {
     }
 
     void addGraphic(Graphic graphic) {
+        if (graphic instanceof Page) {
+            Page page = (Page) graphic;
+            if (page.parent != null) {
+                throw new IllegalStateException("Page " + page.name + " already belongs to page " + page.parent.name);
+            }
+            for (Page ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor == page) {
+                    throw new IllegalArgumentException("Page " + page.name + " cannot contain itself");
+                }
+            }
+            page.parent = this;
+        }
         pageGraphics.add(graphic);
+        propagate(graphic.count(), graphic.height());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Read-only view, changes go through {@link #addGraphic(Graphic)} and {@link #removeGraphic(Graphic)} so that
+     * the cached aggregates stay correct.
+     */
+    List<Graphic> getGraphics() {
+        return Collections.unmodifiableList(pageGraphics);
+    }
+
+    boolean removeGraphic(Graphic graphic) {
+        if (!pageGraphics.remove(graphic)) {
+            return false;
+        }
+        if (graphic instanceof Page) {
+            ((Page) graphic).parent = null;
+        }
+        propagate(-graphic.count(), -graphic.height());
+        return true;
+    }
+
+    private void propagate(int countDelta, int heightDelta) {
+        for (Page page = this; page != null; page = page.parent) {
+            page.count += countDelta;
+            page.height += heightDelta;
+        }
     }
 
     @Override
-    public void print() {
-        System.out.printf("Page %s, children: \n", name);
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public void render(StringBuilder out) {
+        out.append("Page ").append(name).append(", children: \n");
         for (Graphic graphic : pageGraphics) {
-            graphic.print(); // delegation (group of objects treated as single instance of the object)
+            graphic.render(out); // delegation (group of objects treated as single instance of the object)
         }
     }
-}
 
+    /**
+     * Renders like {@link #render(StringBuilder)}, but child pages with at least {@code threshold} graphics are
+     * rendered in parallel into their own buffers, which are then appended in the original order.
+     */
+    void renderParallel(StringBuilder out, int threshold) {
+        out.append(ForkJoinPool.commonPool().invoke(new RenderTask(this, threshold)));
+    }
+
+    private static class RenderTask extends RecursiveTask<StringBuilder> {
+        private static final long serialVersionUID = 1L;
+
+        private final Page page;
+        private final int threshold;
+
+        RenderTask(Page page, int threshold) {
+            this.page = page;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected StringBuilder compute() {
+            List<Object> parts = new ArrayList<>(); // buffers rendered here and forked tasks, in order
+            StringBuilder current = new StringBuilder();
+            current.append("Page ").append(page.name).append(", children: \n");
+            for (Graphic graphic : page.pageGraphics) {
+                if (graphic instanceof Page && graphic.count() >= threshold) {
+                    parts.add(current);
+                    parts.add(new RenderTask((Page) graphic, threshold).fork());
+                    current = new StringBuilder();
+                } else {
+                    graphic.render(current);
+                }
+            }
+            parts.add(current);
+            StringBuilder out = new StringBuilder();
+            for (Object part : parts) {
+                out.append(part instanceof RenderTask ? ((RenderTask) part).join() : (StringBuilder) part);
+            }
+            return out;
+        }
+    }
+}
 
 class CompositeDriver {
     public static void main(String... args) {
@@ -111,7 +263,147 @@ class CompositeDriver {
         mainPage.addGraphic(page2);
 
         mainPage.print();
+        System.out.printf("%d graphics, %d px high\n", mainPage.count(), mainPage.height());
 
+        page2.addGraphic(new Button()); // updates only page 2 and the main page
+        System.out.printf("%d graphics, %d px high\n", mainPage.count(), mainPage.height());
+
+    }
+}
+
+/**
+ * Deep UI tree with frequent small edits: compares the cached aggregates of {@link Page} with recomputing them
+ * over the whole tree after every edit.
+ */
+class CompositeBenchmark {
+
+    public static void main(String... args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        List<Page> pages = new ArrayList<>();
+        Page root = build("root", depth, width, pages);
+        Random random = new Random(1);
+        int edits = 100_000;
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (int i = 0; i < edits; i++) {
+                edit(pages, random);
+                checksum += root.height();
+            }
+            long cached = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < edits / 100; i++) {
+                edit(pages, random);
+                checksum += fullHeight(root);
+            }
+            long full = (System.nanoTime() - start) * 100;
+
+            System.out.printf("%d pages, %d edits: cached %d ms, full recompute ~%d ms (%d)\n", pages.size(), edits,
+                    TimeUnit.NANOSECONDS.toMillis(cached), TimeUnit.NANOSECONDS.toMillis(full), checksum);
+        }
+    }
+
+    /**
+     * Adds a button to a random page and removes it again, so the tree keeps its size.
+     */
+    private static void edit(List<Page> pages, Random random) {
+        Page page = pages.get(random.nextInt(pages.size()));
+        Graphic button = new Button();
+        page.addGraphic(button);
+        page.removeGraphic(button);
+    }
 
+    /**
+     * A chain of pages, each also holding a few buttons and a few small leaf pages.
+     */
+    private static Page build(String name, int depth, int width, List<Page> pages) {
+        Page root = new Page(name);
+        Page current = root;
+        pages.add(root);
+        for (int level = 1; level < depth; level++) {
+            for (int i = 0; i < width; i++) {
+                current.addGraphic(new Button());
+                Page leafPage = new Page(name + level + "-" + i);
+                leafPage.addGraphic(new Scroll());
+                current.addGraphic(leafPage);
+                pages.add(leafPage);
+            }
+            Page next = new Page(name + level);
+            current.addGraphic(next);
+            pages.add(next);
+            current = next;
+        }
+        return root;
+    }
+
+    private static int fullHeight(Graphic graphic) {
+        if (!(graphic instanceof Page)) {
+            return graphic.height();
+        }
+        int height = 40;
+        for (Graphic child : ((Page) graphic).getGraphics()) {
+            height += fullHeight(child);
+        }
+        return height;
+    }
+}
+
+/**
+ * Renders a tree of 100k graphics by printing every graphic separately, into one reused buffer, and in parallel.
+ * The console is replaced by a stream which discards the output, so only the rendering itself is measured.
+ */
+class CompositeRenderBenchmark {
+
+    public static void main(String... args) {
+        PrintStream console = System.out;
+        Page root = new Page("root");
+        for (int p = 0; p < 100; p++) {
+            Page page = new Page("page " + p);
+            for (int g = 0; g < 1000; g++) {
+                page.addGraphic(g % 10 == 0 ? new Scroll() : new Button());
+            }
+            root.addGraphic(page);
+        }
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), true));
+        StringBuilder buffer = new StringBuilder();
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            printEach(root);
+            long perGraphic = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            buffer.setLength(0);
+            root.render(buffer);
+            System.out.print(buffer);
+            long buffered = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            buffer.setLength(0);
+            root.renderParallel(buffer, 500);
+            System.out.print(buffer);
+            long parallel = System.nanoTime() - start;
+
+            console.printf("%d graphics: println per graphic %d ms, buffered %d ms, parallel %d ms\n", root.count(),
+                    TimeUnit.NANOSECONDS.toMillis(perGraphic), TimeUnit.NANOSECONDS.toMillis(buffered),
+                    TimeUnit.NANOSECONDS.toMillis(parallel));
+        }
+        System.setOut(console);
+    }
+
+    /**
+     * The previous way of printing: one console write per graphic.
+     */
+    private static void printEach(Graphic graphic) {
+        if (graphic instanceof Page) {
+            System.out.printf("Page %s, children: \n", ((Page) graphic).getName());
+            for (Graphic child : ((Page) graphic).getGraphics()) {
+                printEach(child);
+            }
+        } else {
+            System.out.println(graphic instanceof Button ? "Button" : "Scroll");
+        }
     }
 }
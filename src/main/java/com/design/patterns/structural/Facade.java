@@ -1,5 +1,38 @@
 package com.design.patterns.structural;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
 /**
  * The facade pattern is a software-design pattern commonly used in object-oriented programming.
  * Analogous to a facade in architecture, a facade is an object that serves as a front-facing interface masking more
@@ -33,9 +66,96 @@ package com.design.patterns.structural;
  * @author angel.beshirov
  */
 
+/**
+ * Every calling thread executes in its own {@link ExecutionContext}, so concurrent callers neither mix their output
+ * nor share the accumulator. Instructions should be registered before the CPU is shared between threads.
+ */
 class CPU {
+    static final int INSTRUCTION_SET_SIZE = 256;
+
+    private final Instruction[] dispatch = new Instruction[INSTRUCTION_SET_SIZE];
+    private final ThreadLocal<ExecutionContext> contexts = ThreadLocal.withInitial(ExecutionContext::new);
+
+    CPU() {
+        Arrays.fill(dispatch, (Instruction) (iid, context) ->
+                context.output.append("Executing instruction id ").append(iid).append('\n'));
+    }
+
+    /**
+     * Replaces the behaviour of an instruction id.
+     */
+    void register(int iid, Instruction instruction) {
+        dispatch[checkId(iid)] = instruction;
+    }
+
     public void execute(int iid) {
-        System.out.println("Executing instruction id " + iid);
+        ExecutionContext context = contexts.get();
+        dispatch[checkId(iid)].execute(iid, context);
+        context.flush();
+    }
+
+    /**
+     * Decodes the instruction ids once and runs them in a single loop, writing their output at the end.
+     */
+    public void execute(int[] iids) {
+        execute(decode(iids));
+    }
+
+    /**
+     * Runs a program decoded earlier, for instruction streams which are executed more than once.
+     */
+    public void execute(Program program) {
+        ExecutionContext context = contexts.get();
+        program.run(context);
+        context.flush();
+    }
+
+    public void execute(IntBuffer iids) {
+        int[] program = new int[iids.remaining()];
+        iids.duplicate().get(program);
+        execute(program);
+    }
+
+    /**
+     * Runs independent instruction streams concurrently, each in its own context. The output of the lanes is written
+     * in lane order once all of them finished.
+     */
+    public List<ExecutionContext> execute(List<int[]> lanes, Executor executor) {
+        List<CompletableFuture<ExecutionContext>> running = new ArrayList<>(lanes.size());
+        for (int[] lane : lanes) {
+            Program program = decode(lane);
+            running.add(CompletableFuture.supplyAsync(() -> {
+                ExecutionContext laneContext = new ExecutionContext();
+                program.run(laneContext);
+                return laneContext;
+            }, executor));
+        }
+        List<ExecutionContext> contexts = new ArrayList<>(lanes.size());
+        for (CompletableFuture<ExecutionContext> lane : running) {
+            ExecutionContext laneContext = lane.join();
+            laneContext.flush();
+            contexts.add(laneContext);
+        }
+        return contexts;
+    }
+
+    long getAccumulator() {
+        return contexts.get().accumulator; // of the calling thread
+    }
+
+    Program decode(int[] iids) {
+        Instruction[] instructions = new Instruction[iids.length];
+        for (int i = 0; i < iids.length; i++) {
+            instructions[i] = dispatch[checkId(iids[i])];
+        }
+        return new Program(iids.clone(), instructions);
+    }
+
+    private static int checkId(int iid) {
+        if (iid < 0 || iid >= INSTRUCTION_SET_SIZE) {
+            throw new IllegalArgumentException("Unknown instruction id " + iid);
+        }
+        return iid;
     }
 
     public void jump() {
@@ -47,10 +167,227 @@ class CPU {
     }
 }
 
+@FunctionalInterface
+interface Instruction {
+    void execute(int iid, ExecutionContext context);
+}
+
+/**
+ * The state an instruction stream works on: an accumulator register and the output collected so far.
+ */
+class ExecutionContext {
+    final StringBuilder output = new StringBuilder();
+    long accumulator;
+
+    long getAccumulator() {
+        return accumulator;
+    }
+
+    void flush() {
+        if (output.length() > 0) {
+            System.out.print(output);
+            output.setLength(0);
+        }
+    }
+}
+
+/**
+ * Instruction ids already resolved against the dispatch table, so running them needs no lookups or checks.
+ */
+class Program {
+    private final int[] iids;
+    private final Instruction[] instructions;
+
+    Program(int[] iids, Instruction[] instructions) {
+        this.iids = iids;
+        this.instructions = instructions;
+    }
+
+    void run(ExecutionContext context) {
+        for (int i = 0; i < instructions.length; i++) {
+            instructions[i].execute(iids[i], context);
+        }
+    }
+}
+
 class HardDrive {
+    private static final byte[] CONTENT = "test something".getBytes();
+
+    private final Path image;
+    private final BufferPool pool;
+
+    HardDrive() {
+        this(null, new BufferPool(2, 4096));
+    }
+
+    /**
+     * A drive backed by an image file. The pool bounds both the read-ahead and the memory used while streaming.
+     */
+    HardDrive(Path image, BufferPool pool) {
+        this.image = image;
+        this.pool = pool;
+    }
+
     byte[] read() {
         System.out.println("Reading...");
-        return "test something".getBytes();
+        try {
+            return image == null ? CONTENT.clone() : Files.readAllBytes(image);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts reading the content in pooled chunks on a background thread, which keeps reading ahead as long as
+     * there are free buffers in the pool.
+     */
+    ChunkStream stream() {
+        System.out.println("Reading...");
+        try {
+            ReadableByteChannel channel = image == null
+                    ? Channels.newChannel(new ByteArrayInputStream(CONTENT))
+                    : FileChannel.open(image, StandardOpenOption.READ);
+            return new ChunkStream(channel, pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+/**
+ * A fixed set of direct buffers. Running out of buffers blocks the reader, so read-ahead never grows past the pool.
+ */
+class BufferPool {
+    private final BlockingQueue<ByteBuffer> free;
+
+    BufferPool(int buffers, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * Returns null if no buffer became free within the timeout.
+     */
+    ByteBuffer acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        ByteBuffer buffer = free.poll(timeout, unit);
+        return buffer == null ? null : buffer.clear();
+    }
+
+    void release(ByteBuffer buffer) {
+        free.add(buffer);
+    }
+}
+
+/**
+ * Chunks read ahead from a channel. Every chunk returned by {@link #next()} has to be given back through
+ * {@link #release(ByteBuffer)} once it was processed.
+ */
+class ChunkStream implements AutoCloseable {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BufferPool pool;
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>(); // bounded by the pool
+    private final Thread reader;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private boolean finished;
+
+    ChunkStream(ReadableByteChannel channel, BufferPool pool) {
+        this.pool = pool;
+        this.reader = new Thread(() -> readAhead(channel), "hard-drive-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Stops at the end of the content or, checked between chunks, once the stream is closed. The reader is never
+     * interrupted, as that would close an interruptible channel in the middle of a read.
+     */
+    private void readAhead(ReadableByteChannel channel) {
+        ByteBuffer buffer = null;
+        try (channel) {
+            while (!closed) {
+                buffer = pool.acquire(10, TimeUnit.MILLISECONDS);
+                if (buffer == null) {
+                    continue; // all buffers are in use, look at closed again
+                }
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // fill the whole chunk unless the end is reached
+                }
+                if (buffer.position() == 0) {
+                    break;
+                }
+                chunks.add(buffer.flip());
+                boolean last = buffer.limit() < buffer.capacity();
+                buffer = null;
+                if (last) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Read-ahead interrupted", e);
+        } finally {
+            if (buffer != null) {
+                pool.release(buffer);
+            }
+            chunks.add(END);
+        }
+    }
+
+    /**
+     * Returns the next chunk, waiting for it if the reader is behind, or null at the end of the content.
+     */
+    ByteBuffer next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        ByteBuffer chunk;
+        try {
+            chunk = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for data", e);
+        }
+        if (chunk == END) {
+            finished = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    void release(ByteBuffer chunk) {
+        pool.release(chunk);
+    }
+
+    /**
+     * Stops the reader and returns every chunk it read ahead to the pool.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        while (!finished) {
+            try {
+                ByteBuffer chunk = chunks.take();
+                if (chunk == END) {
+                    finished = true;
+                } else {
+                    pool.release(chunk);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
@@ -58,6 +395,26 @@ class Memory {
     void load() {
         System.out.println("Loading into memory");
     }
+
+    /**
+     * Consumes the chunks as they arrive, so loading overlaps with the reads. Returns the number of loaded bytes.
+     */
+    long load(ChunkStream stream) {
+        System.out.println("Loading into memory");
+        CRC32 checksum = new CRC32();
+        long loaded = 0;
+        try (stream) {
+            ByteBuffer chunk;
+            while ((chunk = stream.next()) != null) {
+                loaded += chunk.remaining();
+                checksum.update(chunk);
+                stream.release(chunk);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return loaded;
+    }
 }
 
 class ComputerFacade {
@@ -73,11 +430,225 @@ class ComputerFacade {
 
     public void start() {
         cpu.freeze();
-        hardDrive.read();
-        memory.load();
+        memory.load(hardDrive.stream());
         cpu.jump();
         cpu.execute(1);
     }
+
+    /**
+     * Same start-up as {@link #start()}, but as a dependency graph: the CPU freeze and loading the disk content run
+     * concurrently, so the start-up takes as long as the critical path instead of the sum of all steps.
+     */
+    public BootReport startConcurrently(Executor executor, Duration stepTimeout) {
+        return new BootSequence.Builder()
+                .step("freeze", stepTimeout, cpu::freeze)
+                .step("load", stepTimeout, () -> memory.load(hardDrive.stream()))
+                .step("jump", stepTimeout, cpu::jump, "freeze", "load")
+                .step("execute", stepTimeout, () -> cpu.execute(1), "jump")
+                .build()
+                .run(executor);
+    }
+}
+
+/**
+ * A single start-up step: it runs once all of its dependencies completed and fails if it takes longer than its timeout.
+ */
+class BootStep {
+    private final String name;
+    private final Duration timeout;
+    private final Runnable action;
+    private final List<String> dependencies;
+
+    BootStep(String name, Duration timeout, Runnable action, List<String> dependencies) {
+        this.name = name;
+        this.timeout = timeout;
+        this.action = action;
+        this.dependencies = dependencies;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Duration getTimeout() {
+        return timeout;
+    }
+
+    Runnable getAction() {
+        return action;
+    }
+
+    List<String> getDependencies() {
+        return dependencies;
+    }
+}
+
+/**
+ * Start-up modelled as a dependency graph. Each step is started as soon as its dependencies are done, so independent
+ * steps run concurrently on the given executor. A failed or timed out step fails all steps which depend on it;
+ * the action of a timed out step is not interrupted. A step's timeout covers only its own run, not the time it waits
+ * for its dependencies or for a free executor thread.
+ */
+class BootSequence {
+    private final List<BootStep> steps; // topologically sorted
+
+    private BootSequence(List<BootStep> steps) {
+        this.steps = steps;
+    }
+
+    BootReport run(Executor executor) {
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<BootReport.StepTiming>> futures = new HashMap<>();
+        for (BootStep step : steps) {
+            CompletableFuture<?>[] dependencies = step.getDependencies().stream()
+                    .map(futures::get)
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture<BootReport.StepTiming> future = CompletableFuture.allOf(dependencies)
+                    .thenCompose(ignored -> runStep(step, executor, start));
+            futures.put(step.getName(), future);
+        }
+
+        Map<String, BootReport.StepTiming> timings = new LinkedHashMap<>();
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        Map<String, String> skipped = new LinkedHashMap<>();
+        for (BootStep step : steps) { // dependencies come first, so their outcome is already known
+            String failedDependency = step.getDependencies().stream()
+                    .filter(dependency -> failures.containsKey(dependency) || skipped.containsKey(dependency))
+                    .findFirst()
+                    .orElse(null);
+            if (failedDependency != null) {
+                skipped.put(step.getName(), failedDependency);
+                continue;
+            }
+            try {
+                timings.put(step.getName(), futures.get(step.getName()).join());
+            } catch (CompletionException e) {
+                failures.put(step.getName(), e.getCause());
+            }
+        }
+        return new BootReport(timings, failures, skipped, System.nanoTime() - start);
+    }
+
+    /**
+     * The timeout starts when the action starts, time spent waiting for a free executor thread does not count.
+     * A step which finishes after its timeout keeps the timeout as its outcome.
+     */
+    private static CompletableFuture<BootReport.StepTiming> runStep(BootStep step, Executor executor, long start) {
+        CompletableFuture<BootReport.StepTiming> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                long stepStart = System.nanoTime();
+                result.orTimeout(step.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+                try {
+                    step.getAction().run();
+                    result.complete(new BootReport.StepTiming(stepStart - start, System.nanoTime() - start));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    static class Builder {
+        private final Map<String, BootStep> steps = new LinkedHashMap<>();
+
+        Builder step(String name, Duration timeout, Runnable action, String... dependencies) {
+            if (steps.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate step " + name);
+            }
+            steps.put(name, new BootStep(name, timeout, action, Arrays.asList(dependencies)));
+            return this;
+        }
+
+        BootSequence build() {
+            List<BootStep> sorted = new ArrayList<>(steps.size());
+            Map<String, Boolean> visited = new HashMap<>(); // false while on the current path, true when done
+            for (BootStep step : steps.values()) {
+                visit(step, visited, sorted);
+            }
+            return new BootSequence(sorted);
+        }
+
+        private void visit(BootStep step, Map<String, Boolean> visited, List<BootStep> sorted) {
+            Boolean done = visited.get(step.getName());
+            if (done != null) {
+                if (!done) {
+                    throw new IllegalStateException("Dependency cycle through step " + step.getName());
+                }
+                return;
+            }
+            visited.put(step.getName(), false);
+            for (String dependency : step.getDependencies()) {
+                BootStep required = steps.get(dependency);
+                if (required == null) {
+                    throw new IllegalStateException(step.getName() + " depends on unknown step " + dependency);
+                }
+                visit(required, visited, sorted);
+            }
+            visited.put(step.getName(), true);
+            sorted.add(step);
+        }
+    }
+}
+
+/**
+ * When each boot step ran relative to the start of the sequence, which steps failed, which were skipped because
+ * a dependency failed, and how long the whole start-up took.
+ */
+class BootReport {
+    private final Map<String, StepTiming> timings;
+    private final Map<String, Throwable> failures;
+    private final Map<String, String> skipped; // step -> the dependency which failed or was skipped
+    private final long totalNanos;
+
+    BootReport(Map<String, StepTiming> timings, Map<String, Throwable> failures, Map<String, String> skipped,
+               long totalNanos) {
+        this.timings = timings;
+        this.failures = failures;
+        this.skipped = skipped;
+        this.totalNanos = totalNanos;
+    }
+
+    boolean isSuccessful() {
+        return failures.isEmpty() && skipped.isEmpty();
+    }
+
+    Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    Map<String, String> getSkipped() {
+        return skipped;
+    }
+
+    long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder("Boot finished in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(totalNanos)).append(" ms\n");
+        timings.forEach((name, timing) -> report.append(String.format("  %-10s %6d ms -> %6d ms%n", name,
+                TimeUnit.NANOSECONDS.toMillis(timing.startNanos), TimeUnit.NANOSECONDS.toMillis(timing.endNanos))));
+        failures.forEach((name, cause) -> report.append(String.format("  %-10s failed: %s%n", name, cause)));
+        skipped.forEach((name, dependency) -> report.append(
+                String.format("  %-10s skipped: %s did not complete%n", name, dependency)));
+        return report.toString();
+    }
+
+    static class StepTiming {
+        final long startNanos;
+        final long endNanos;
+
+        StepTiming(long startNanos, long endNanos) {
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+    }
 }
 
 class FacadeDriver {
@@ -86,5 +657,125 @@ class FacadeDriver {
         ComputerFacade computerFacade = new ComputerFacade(new CPU(), new HardDrive(), new Memory());
 
         computerFacade.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            System.out.println(computerFacade.startConcurrently(executor, Duration.ofSeconds(1)));
+
+            // subsystems with slow initialization: freeze and read overlap, so start-up takes ~500 ms instead of
+            // ~800 ms; execute exceeds its 20 ms timeout and shows up as failed, halt depends on it and is skipped
+            BootReport report = new BootSequence.Builder()
+                    .step("freeze", Duration.ofSeconds(1), () -> sleep(300))
+                    .step("read", Duration.ofSeconds(1), () -> sleep(300))
+                    .step("load", Duration.ofSeconds(1), () -> sleep(100), "read")
+                    .step("jump", Duration.ofSeconds(1), () -> sleep(50), "freeze", "load")
+                    .step("execute", Duration.ofMillis(20), () -> sleep(50), "jump")
+                    .step("halt", Duration.ofSeconds(1), () -> sleep(10), "execute")
+                    .build()
+                    .run(executor);
+            System.out.println(report);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Loads a disk image by reading it whole and then processing it, compared to streaming it through a small pool.
+ */
+class HardDriveBenchmark {
+
+    public static void main(String... args) throws IOException {
+        Path image = Files.createTempFile("disk", ".img");
+        try {
+            byte[] content = new byte[64 << 20];
+            new Random(42).nextBytes(content);
+            Files.write(image, content);
+            content = null;
+
+            HardDrive drive = new HardDrive(image, new BufferPool(4, 256 << 10));
+            Memory memory = new Memory();
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                CRC32 checksum = new CRC32();
+                checksum.update(drive.read());
+                long whole = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long loaded = memory.load(drive.stream());
+                long streamed = System.nanoTime() - start;
+                System.out.printf("%d MB: read whole %d ms, streamed %d ms (1 MB of buffers)%n", loaded >> 20,
+                        TimeUnit.NANOSECONDS.toMillis(whole), TimeUnit.NANOSECONDS.toMillis(streamed));
+            }
+        } finally {
+            Files.delete(image);
+        }
+    }
+}
+
+
+/**
+ * Instruction throughput of per-call execute compared to batches and to four lanes.
+ */
+class CPUBenchmark {
+
+    public static void main(String... args) {
+        CPU cpu = new CPU();
+        cpu.register(0, (iid, context) -> context.accumulator++);
+        cpu.register(1, (iid, context) -> context.accumulator ^= context.accumulator << 13);
+        cpu.register(2, (iid, context) -> context.accumulator ^= context.accumulator >>> 7);
+        cpu.register(3, (iid, context) -> context.accumulator += iid);
+
+        int[] compute = new Random(42).ints(1 << 20, 0, 4).toArray();
+        int[] printing = new Random(42).ints(1 << 16, 4, CPU.INSTRUCTION_SET_SIZE).toArray();
+        PrintStream out = System.out;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 5; round++) {
+                out.println("compute:  " + measure(cpu, compute, executor));
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                String result = measure(cpu, printing, executor);
+                System.setOut(out);
+                out.println("printing: " + result);
+            }
+        } finally {
+            System.setOut(out);
+            executor.shutdown();
+        }
+        System.out.println(cpu.getAccumulator());
+    }
+
+    private static String measure(CPU cpu, int[] program, ExecutorService executor) {
+        long start = System.nanoTime();
+        for (int iid : program) {
+            cpu.execute(iid);
+        }
+        long perCall = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        cpu.execute(program);
+        long batch = System.nanoTime() - start;
+
+        Program decoded = cpu.decode(program);
+        start = System.nanoTime();
+        cpu.execute(decoded);
+        long predecoded = System.nanoTime() - start;
+
+        List<int[]> lanes = Collections.nCopies(4, program);
+        start = System.nanoTime();
+        cpu.execute(lanes, executor);
+        long multiLane = System.nanoTime() - start;
+
+        return String.format("per call %.1f M/s, batch %.1f M/s, predecoded %.1f M/s, 4 lanes %.1f M/s (%d cpus)",
+                program.length * 1e3 / perCall, program.length * 1e3 / batch, program.length * 1e3 / predecoded,
+                lanes.size() * program.length * 1e3 / multiLane, Runtime.getRuntime().availableProcessors());
     }
 }
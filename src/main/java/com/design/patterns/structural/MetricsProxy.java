@@ -0,0 +1,153 @@
+package com.design.patterns.structural;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dynamic proxy variant of the Proxy pattern. Instead of writing a proxy class by hand for every subject
+ * (like {@link ProxyImage} for {@link PngImage}), {@link java.lang.reflect.Proxy} generates one at runtime for any
+ * interface. The generated proxy forwards every call to the real object and records, per method, the number of calls
+ * and a latency histogram, so hot paths can be found without editing the instrumented classes.
+ * <p>
+ * The statistics for all methods are created up front, so the only per-call costs are a lookup in an immutable map,
+ * two {@link System#nanoTime()} calls and a few striped atomic increments.
+ *
+ * @author angel.beshirov
+ */
+public final class MetricsProxy implements InvocationHandler {
+
+    private final Object target;
+    private final Map<Method, MethodStats> stats;
+
+    private MetricsProxy(Class<?> type, Object target) {
+        this.target = target;
+        Map<Method, MethodStats> methods = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            method.setAccessible(true); // the pattern interfaces are package-private
+            methods.put(method, new MethodStats(method));
+        }
+        this.stats = Collections.unmodifiableMap(methods);
+    }
+
+    /**
+     * Wraps the target into an instrumented proxy implementing the given interface.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T wrap(Class<T> type, T target) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        return (T) java.lang.reflect.Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new MetricsProxy(type, target));
+    }
+
+    /**
+     * Returns the statistics collected by a proxy created through {@link #wrap(Class, Object)}.
+     */
+    public static Map<Method, MethodStats> statsOf(Object proxy) {
+        InvocationHandler handler = java.lang.reflect.Proxy.getInvocationHandler(proxy);
+        if (!(handler instanceof MetricsProxy)) {
+            throw new IllegalArgumentException("Not an instrumented proxy");
+        }
+        return ((MetricsProxy) handler).stats;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        MethodStats methodStats = stats.get(method);
+        if (methodStats == null) { // equals/hashCode/toString from Object
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return invokeTarget(method, args);
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            return invokeTarget(methodStats.method, args);
+        } finally {
+            methodStats.record(System.nanoTime() - start);
+        }
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Call count and latency histogram of a single method. Bucket i holds the calls which took at least
+     * 2^i and less than 2^(i+1) nanoseconds.
+     */
+    public static final class MethodStats {
+        private static final int BUCKETS = 64;
+
+        private final Method method;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        MethodStats(Method method) {
+            this.method = method;
+        }
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+            histogram.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Returns an upper bound in nanoseconds of the latency below which the given fraction of calls completed.
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = histogram.get(i);
+                total += snapshot[i];
+            }
+            long threshold = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= threshold && seen > 0) {
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long count = getCalls();
+            StringJoiner signature = new StringJoiner(", ", method.getName() + "(", ")");
+            for (Class<?> parameter : method.getParameterTypes()) {
+                signature.add(parameter.getSimpleName());
+            }
+            return String.format("%s: calls=%d, avg=%dns, p50<%dns, p99<%dns", signature, count,
+                    count == 0 ? 0 : getTotalNanos() / count, percentile(0.5), percentile(0.99));
+        }
+    }
+}
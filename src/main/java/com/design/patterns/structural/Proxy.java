@@ -1,5 +1,28 @@
 package com.design.patterns.structural;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 /**
  * In computer programming, the proxy pattern is a software design pattern. A proxy, in its most general form,
  * is a class functioning as an interface to something else. The proxy could interface to anything: a network connection,
@@ -39,31 +62,50 @@ interface PngImage {
 class RealImage implements PngImage {
 
     private final String fileName;
+    private final DecodedPng image;
 
     public RealImage(String fileName) {
         this.fileName = fileName;
-        loadImage();
+        this.image = loadImage();
+    }
+
+    RealImage(String fileName, DecodedPng image) {
+        this.fileName = fileName;
+        this.image = image;
     }
 
     @Override
     public void display() {
-        System.out.println("Displaying image through real image: " + fileName);
+        System.out.printf("Displaying image through real image: %s (%dx%d)\n", fileName, image.getWidth(), image.getHeight());
     }
 
-    private void loadImage() {
+    private DecodedPng loadImage() {
         System.out.printf("Loading %s...\n", fileName);
+        try {
+            return PngDecoder.decode(PngDecoder.map(Path.of(fileName)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load " + fileName, e);
+        }
     }
 }
 
 class ProxyImage implements PngImage {
 
     private final String fileName;
-    private PngImage realImage;
+    private volatile PngImage realImage;
 
     public ProxyImage(String fileName) {
         this.fileName = fileName;
     }
 
+    String getFileName() {
+        return fileName;
+    }
+
+    void resolve(PngImage realImage) {
+        this.realImage = realImage;
+    }
+
     @Override
     public void display() {
         System.out.println("Delegating call through proxy to real image.");
@@ -74,16 +116,364 @@ class ProxyImage implements PngImage {
     }
 }
 
+class DecodedPng {
+    private final int width;
+    private final int height;
+    private final byte[] pixels;
+
+    DecodedPng(int width, int height, byte[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getPixels() {
+        return pixels;
+    }
+}
+
+/**
+ * Minimal PNG reader/writer for 8 bit grayscale, RGB and RGBA non-interlaced images. The file is read through a
+ * memory mapped buffer and the compressed data is inflated straight from it, so no intermediate copy of the file is made.
+ */
+class PngDecoder {
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private PngDecoder() {}
+
+    static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    static DecodedPng decode(ByteBuffer buffer) {
+        if (buffer.remaining() < 8 || buffer.getLong(buffer.position()) != SIGNATURE) {
+            throw new IllegalArgumentException("Not a PNG file");
+        }
+        int position = buffer.position() + 8;
+        int width = 0;
+        int height = 0;
+        int bytesPerPixel = 0;
+        byte[] raw = null;
+        int inflated = 0;
+        byte[] excess = new byte[1];
+        Inflater inflater = new Inflater();
+        CRC32 crc = new CRC32();
+        try {
+            while (position + 12 <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                int type = buffer.getInt(position + 4);
+                if (length < 0 || length > buffer.limit() - position - 12) {
+                    throw new IllegalArgumentException("Chunk at offset " + position + " exceeds the file");
+                }
+                crc.reset();
+                crc.update(buffer.slice(position + 4, length + 4));
+                if ((int) crc.getValue() != buffer.getInt(position + 8 + length)) {
+                    throw new IllegalArgumentException("Corrupted chunk at offset " + position);
+                }
+                if (type == IHDR) {
+                    if (length != 13) {
+                        throw new IllegalArgumentException("Invalid IHDR length " + length);
+                    }
+                    width = buffer.getInt(position + 8);
+                    height = buffer.getInt(position + 12);
+                    bytesPerPixel = bytesPerPixel(buffer.get(position + 16), buffer.get(position + 17));
+                    if (buffer.get(position + 18) != 0 || buffer.get(position + 19) != 0
+                            || buffer.get(position + 20) != 0) {
+                        throw new IllegalArgumentException("Unsupported compression, filter or interlace method");
+                    }
+                    long rowLength = 1 + (long) width * bytesPerPixel;
+                    if (width <= 0 || height <= 0 || rowLength > (Integer.MAX_VALUE - 8) / height) {
+                        throw new IllegalArgumentException("Unsupported image size " + width + "x" + height);
+                    }
+                    raw = new byte[(int) (height * rowLength)];
+                } else if (type == IDAT) {
+                    if (raw == null) {
+                        throw new IllegalArgumentException("IDAT before IHDR");
+                    }
+                    inflater.setInput(buffer.slice(position + 8, length));
+                    while (!inflater.needsInput() && !inflater.finished()) {
+                        if (inflated == raw.length) {
+                            // only the end of the stream may be left, anything more contradicts IHDR
+                            if (inflater.inflate(excess) > 0 || !inflater.needsInput() && !inflater.finished()) {
+                                throw new IllegalArgumentException("Image data exceeds the size declared in IHDR");
+                            }
+                            break;
+                        }
+                        int count = inflater.inflate(raw, inflated, raw.length - inflated);
+                        if (count == 0 && inflater.needsDictionary()) {
+                            throw new IllegalArgumentException("Image data requires a preset dictionary");
+                        }
+                        inflated += count;
+                    }
+                } else if (type == IEND) {
+                    break;
+                }
+                position += 12 + length;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted image data", e);
+        } finally {
+            inflater.end();
+        }
+        if (raw == null || inflated != raw.length) {
+            throw new IllegalArgumentException("Truncated PNG file");
+        }
+        return new DecodedPng(width, height, unfilter(raw, width, height, bytesPerPixel));
+    }
+
+    private static int bytesPerPixel(byte bitDepth, byte colorType) {
+        if (bitDepth != 8) {
+            throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        }
+        switch (colorType) {
+            case 0:
+                return 1;
+            case 2:
+                return 3;
+            case 6:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported color type " + colorType);
+        }
+    }
+
+    private static byte[] unfilter(byte[] raw, int width, int height, int bpp) {
+        int stride = width * bpp;
+        byte[] pixels = new byte[height * stride];
+        for (int y = 0; y < height; y++) {
+            int filter = raw[y * (stride + 1)];
+            int in = y * (stride + 1) + 1;
+            int out = y * stride;
+            for (int x = 0; x < stride; x++) {
+                int a = x >= bpp ? pixels[out + x - bpp] & 0xFF : 0;
+                int b = y > 0 ? pixels[out + x - stride] & 0xFF : 0;
+                int c = x >= bpp && y > 0 ? pixels[out + x - stride - bpp] & 0xFF : 0;
+                int value = raw[in + x] & 0xFF;
+                switch (filter) {
+                    case 0:
+                        break;
+                    case 1:
+                        value += a;
+                        break;
+                    case 2:
+                        value += b;
+                        break;
+                    case 3:
+                        value += (a + b) >>> 1;
+                        break;
+                    case 4:
+                        value += paeth(a, b, c);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter type " + filter);
+                }
+                pixels[out + x] = (byte) value;
+            }
+        }
+        return pixels;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    static void writeRgb(Path path, int width, int height, byte[] pixels) throws IOException {
+        int stride = width * 3;
+        byte[] raw = new byte[height * (stride + 1)];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, y * stride, raw, y * (stride + 1) + 1, stride);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+
+        ByteBuffer header = ByteBuffer.allocate(13).putInt(width).putInt(height).put((byte) 8).put((byte) 2)
+                .put((byte) 0).put((byte) 0).put((byte) 0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, SIGNATURE));
+            writeChunk(channel, IHDR, header.array());
+            writeChunk(channel, IDAT, compressed.toByteArray());
+            writeChunk(channel, IEND, new byte[0]);
+        }
+    }
+
+    private static void writeChunk(FileChannel channel, int type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(12 + data.length).putInt(data.length).putInt(type).put(data);
+        crc.update(chunk.array(), 4, 4 + data.length);
+        chunk.putInt((int) crc.getValue()).flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
+}
+
+/**
+ * Loads real images in two pipelined stages: a single I/O thread maps the files and touches their pages, while
+ * a bounded pool decodes the already mapped files. The number of mapped but not yet decoded files is bounded too,
+ * so memory stays flat no matter how large the batch is.
+ */
+class ImageLoader implements AutoCloseable {
+    private final ExecutorService ioExecutor;
+    private final ExecutorService decodeExecutor;
+    private final Semaphore inFlight;
+
+    public ImageLoader(int decodeThreads, int maxInFlight) {
+        this.ioExecutor = Executors.newSingleThreadExecutor();
+        this.decodeExecutor = Executors.newFixedThreadPool(decodeThreads);
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public CompletableFuture<PngImage> load(String fileName) {
+        return CompletableFuture.supplyAsync(() -> {
+            inFlight.acquireUninterruptibly();
+            try {
+                MappedByteBuffer mapped = PngDecoder.map(Path.of(fileName));
+                mapped.load();
+                return mapped;
+            } catch (IOException e) {
+                inFlight.release();
+                throw new UncheckedIOException("Could not load " + fileName, e);
+            }
+        }, ioExecutor).thenApplyAsync(mapped -> {
+            try {
+                return new RealImage(fileName, PngDecoder.decode(mapped));
+            } finally {
+                inFlight.release();
+            }
+        }, decodeExecutor);
+    }
+
+    /**
+     * Resolves all proxies in the batch; the returned future completes when every image has been decoded.
+     */
+    public CompletableFuture<Void> resolveAll(List<ProxyImage> proxies) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[proxies.size()];
+        for (int i = 0; i < futures.length; i++) {
+            ProxyImage proxy = proxies.get(i);
+            futures[i] = load(proxy.getFileName()).thenAccept(proxy::resolve);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    @Override
+    public void close() {
+        ioExecutor.shutdown();
+        decodeExecutor.shutdown();
+    }
+}
+
 class ProxyDriver {
 
-    public static void main(String... args) {
-        PngImage image1 = new ProxyImage("PNG_IMG123.png");
-        PngImage image2 = new ProxyImage("PNG_IMG1234.png");
+    public static void main(String... args) throws IOException {
+        Path directory = Files.createTempDirectory("png-proxy");
+        try {
+            PngDecoder.writeRgb(directory.resolve("PNG_IMG123.png"), 64, 48, new byte[64 * 48 * 3]);
+            PngDecoder.writeRgb(directory.resolve("PNG_IMG1234.png"), 32, 32, new byte[32 * 32 * 3]);
+
+            PngImage image1 = new ProxyImage(directory.resolve("PNG_IMG123.png").toString());
+            PngImage image2 = new ProxyImage(directory.resolve("PNG_IMG1234.png").toString());
+
+            image1.display();
+            image1.display();
+
+            image2.display();
+            image2.display();
+
+            PngImage instrumented = MetricsProxy.wrap(PngImage.class,
+                    new ProxyImage(directory.resolve("PNG_IMG123.png").toString()));
+            instrumented.display();
+            instrumented.display();
+            MetricsProxy.statsOf(instrumented).values().forEach(System.out::println);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Deletes a directory of generated images (it has no subdirectories).
+     */
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
+
+/**
+ * Compares loading a directory of generated images one by one through {@link RealImage} against the pipelined
+ * {@link ImageLoader}.
+ */
+class ImageLoaderBenchmark {
+
+    public static void main(String... args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        Path directory = Files.createTempDirectory("png-bench");
+        try {
+            byte[] pixels = new byte[size * size * 3];
+            Random random = new Random(42);
+            List<String> fileNames = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                for (int p = 0; p < pixels.length; p += 3) {
+                    pixels[p] = (byte) (p / 3 % size);
+                    pixels[p + 1] = (byte) random.nextInt(16);
+                    pixels[p + 2] = (byte) i;
+                }
+                Path file = directory.resolve("img" + i + ".png");
+                PngDecoder.writeRgb(file, size, size, pixels);
+                fileNames.add(file.toString());
+            }
 
-        image1.display();
-        image1.display();
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (String fileName : fileNames) {
+                    PngDecoder.decode(PngDecoder.map(Path.of(fileName)));
+                }
+                long sequential = System.nanoTime() - start;
 
-        image2.display();
-        image2.display();
+                List<ProxyImage> proxies = new ArrayList<>();
+                for (String fileName : fileNames) {
+                    proxies.add(new ProxyImage(fileName));
+                }
+                start = System.nanoTime();
+                try (ImageLoader loader = new ImageLoader(Runtime.getRuntime().availableProcessors(), 16)) {
+                    loader.resolveAll(proxies).join();
+                }
+                long pipelined = System.nanoTime() - start;
+
+                System.out.printf("%d images %dx%d: sequential %d ms, pipelined %d ms\n", count, size, size,
+                        TimeUnit.NANOSECONDS.toMillis(sequential), TimeUnit.NANOSECONDS.toMillis(pipelined));
+            }
+        } finally {
+            ProxyDriver.deleteDirectory(directory);
+        }
     }
 }